@@ -0,0 +1,67 @@
+package com.github.gosu.jsr223.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.script.Bindings;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.SimpleBindings;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of marshalling bindings into and program vars out of an evaluation, as the number of bound
+ * values grows. Compares the engine's own change-tracking bindings with plain {@link SimpleBindings}.
+ * Each thread has its own engine and bindings, so {@code -t} scales the load without sharing them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BindingsBenchmark {
+
+  @Param({"0", "10", "100", "1000"})
+  public int bindingCount;
+
+  private CompiledScript _compiled;
+  private Bindings _engineBindings;
+  private Bindings _simpleBindings;
+
+  @Setup
+  public void setUp() throws Exception {
+    ScriptEngine engine = Scripts.newEngine();
+    _engineBindings = engine.createBindings();
+    _simpleBindings = new SimpleBindings();
+    fill(_engineBindings);
+    fill(_simpleBindings);
+    _compiled = Scripts.compile(engine, "var result = x + 1");
+  }
+
+  private void fill(Bindings bindings) {
+    bindings.put("x", 41);
+    for (int i = 0; i < bindingCount; i++) {
+      bindings.put("value" + i, "value " + i);
+    }
+  }
+
+  @Benchmark
+  public Object engineBindings() throws Exception {
+    return _compiled.eval(_engineBindings);
+  }
+
+  @Benchmark
+  public Object simpleBindings() throws Exception {
+    return _compiled.eval(_simpleBindings);
+  }
+}
@@ -0,0 +1,79 @@
+package com.github.gosu.jsr223.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.script.Bindings;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code eval(String)}, which parses (or hits the program cache) on every call, against evaluating a
+ * script compiled once, from one thread and from every core against a single shared engine.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EvalBenchmark {
+
+  @Param({"small", "large"})
+  public String size;
+
+  private ScriptEngine _engine;
+  private String _script;
+  private CompiledScript _compiled;
+
+  @Setup
+  public void setUp() throws Exception {
+    _engine = Scripts.newEngine();
+    _script = size.equals("small") ? Scripts.SMALL : Scripts.LARGE;
+    _compiled = Scripts.compile(_engine, _script);
+  }
+
+  private Bindings bindings() {
+    Bindings bindings = _engine.createBindings();
+    bindings.put("x", 41);
+    return bindings;
+  }
+
+  @Benchmark
+  public Object evalString() throws Exception {
+    return _engine.eval(_script, bindings());
+  }
+
+  @Benchmark
+  public Object compileAndEval() throws Exception {
+    return Scripts.compile(_engine, _script).eval(bindings());
+  }
+
+  @Benchmark
+  public Object evalCompiled() throws Exception {
+    return _compiled.eval(bindings());
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public Object evalStringAllCores() throws Exception {
+    return _engine.eval(_script, bindings());
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public Object evalCompiledAllCores() throws Exception {
+    return _compiled.eval(bindings());
+  }
+}
@@ -0,0 +1,70 @@
+package com.github.gosu.jsr223.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Invocable} entry points: functions, methods on script objects, and interface implementations.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InvokeBenchmark {
+
+  private Invocable _invocable;
+  private Object _counter;
+  private Callable<?> _callable;
+
+  @Setup
+  public void setUp() throws Exception {
+    ScriptEngine engine = Scripts.newEngine();
+    engine.eval(Scripts.FUNCTIONS);
+    _invocable = (Invocable) engine;
+    _counter = engine.get("counter");
+    _callable = _invocable.getInterface(Callable.class);
+  }
+
+  @Benchmark
+  public Object invokeFunction() throws Exception {
+    return _invocable.invokeFunction("add", 20, 22);
+  }
+
+  @Benchmark
+  public Object invokeMethod() throws Exception {
+    return _invocable.invokeMethod(_counter, "next", 41);
+  }
+
+  @Benchmark
+  public Object interfaceCall() throws Exception {
+    return _callable.call();
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public Object invokeFunctionAllCores() throws Exception {
+    return _invocable.invokeFunction("add", 20, 22);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public Object interfaceCallAllCores() throws Exception {
+    return _callable.call();
+  }
+}
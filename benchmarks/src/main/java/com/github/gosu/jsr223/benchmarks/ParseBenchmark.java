@@ -0,0 +1,63 @@
+package com.github.gosu.jsr223.benchmarks;
+
+import com.github.gosu.jsr223.GosuScriptEngineFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing with the program cache off, so that every compile reaches the parser, with parsers pooled
+ * (the default size) and with a pool of size zero, which creates a parser for every parse.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+
+  @Param({"pooled", "unpooled"})
+  public String parsers;
+
+  @Param({"small", "large"})
+  public String size;
+
+  private ScriptEngine _engine;
+  private String _script;
+
+  @Setup
+  public void setUp() {
+    GosuScriptEngineFactory factory = new GosuScriptEngineFactory();
+    factory.getProgramCache().setEnabled(false);
+    if (parsers.equals("unpooled")) {
+      factory.getParserPool().setMaxIdle(0);
+    }
+    _engine = factory.getScriptEngine();
+    _script = size.equals("small") ? Scripts.SMALL : Scripts.LARGE;
+  }
+
+  @Benchmark
+  public CompiledScript compile() throws Exception {
+    return Scripts.compile(_engine, _script);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public CompiledScript compileAllCores() throws Exception {
+    return Scripts.compile(_engine, _script);
+  }
+}
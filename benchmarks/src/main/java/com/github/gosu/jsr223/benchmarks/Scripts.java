@@ -0,0 +1,54 @@
+package com.github.gosu.jsr223.benchmarks;
+
+import com.github.gosu.jsr223.GosuScriptEngine;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Scripts and engine setup shared by the benchmarks.
+ */
+final class Scripts {
+  static final String SMALL = "x + 1";
+
+  // the binding SMALL and LARGE read, which compiling needs to know about ahead of the bindings
+  static final Map<String, Class<?>> TYPES = Collections.<String, Class<?>>singletonMap("x", Integer.class);
+
+  static final String LARGE;
+  static {
+    StringBuilder sb = new StringBuilder();
+    sb.append("var total = 0\n");
+    for (int i = 0; i < 200; i++) {
+      sb.append("function f").append(i).append("(n : int) : int { return n * ").append(i).append(" + 1 }\n");
+      sb.append("total = total + f").append(i).append("(x)\n");
+    }
+    sb.append("return total\n");
+    LARGE = sb.toString();
+  }
+
+  static final String FUNCTIONS =
+      "function add(a : int, b : int) : int { return a + b }\n" +
+      "function call() : Object { return \"called\" }\n" +
+      "class Counter {\n" +
+      "  function next(n : int) : int { return n + 1 }\n" +
+      "}\n" +
+      "var counter = new Counter()";
+
+  private Scripts() {
+  }
+
+  static ScriptEngine newEngine() {
+    return new ScriptEngineManager().getEngineByName("gosu");
+  }
+
+  /**
+   * Compiles a script that reads {@code x}.
+   */
+  static CompiledScript compile(ScriptEngine engine, String script) throws ScriptException {
+    return ((GosuScriptEngine) engine).compile(script, TYPES);
+  }
+}
@@ -0,0 +1,155 @@
+package com.github.gosu.jsr223;
+
+import gw.lang.GosuShop;
+import gw.lang.parser.ExternalSymbolMapSymbolTableWrapper;
+import gw.lang.parser.ISymbol;
+import gw.lang.parser.ISymbolTable;
+import gw.lang.reflect.IType;
+import gw.lang.reflect.gs.IProgramInstance;
+
+import javax.script.Bindings;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Evaluates one compiled script over many rows on a single thread. Everything that does not depend on
+ * the row is set up once: the global bindings at the bottom of the symbol table and the symbol-table
+ * wrapper handed to the program. Each row only fills a scope of its own, and program vars are not copied
+ * back into it. A script without program vars runs every row on the same instance; any other gets a new
+ * instance per row, so that no row sees the vars of the one before.
+ * <p>
+ * Not thread-safe; parallel batches use one evaluator per thread.
+ */
+final class BatchEvaluator {
+  private final GosuCompiledScript _script;
+  private final Map<String, IType> _declaredTypes;
+  // null when every row needs an instance of its own
+  private final IProgramInstance _instance;
+  private final ISymbolTable _symbolTable;
+  private final ExternalSymbolMapSymbolTableWrapper _symbols;
+  private final ScriptMetrics _metrics;
+  private final ScriptProfiler _profiler;
+
+  BatchEvaluator(GosuCompiledScript script, Bindings globalBindings, Map<String, IType> declaredTypes,
+                 ScriptMetrics metrics, ScriptProfiler profiler) {
+    _script = script;
+    _declaredTypes = declaredTypes;
+    _symbolTable = GosuShop.createSymbolTable();
+    if (globalBindings != null) {
+      SymbolMarshaller.loadSymbols(_symbolTable, globalBindings, declaredTypes);
+    }
+    if (declaredTypes != null) {
+      // rows that bind a declared name shadow these from their own scope
+      for (Map.Entry<String, IType> e : declaredTypes.entrySet()) {
+        if (_symbolTable.getSymbol(e.getKey()) == null) {
+          _symbolTable.putSymbol(GosuShop.createSymbol(e.getKey(), e.getValue(), null));
+        }
+      }
+    }
+    _symbolTable.pushScope();
+    _symbols = new ExternalSymbolMapSymbolTableWrapper(_symbolTable);
+    // vars declared without an initializer would carry over from row to row on a shared instance
+    _instance = script.isStateless() ? script.borrowInstance() : null;
+    _metrics = metrics;
+    _profiler = profiler;
+  }
+
+  void eval(Bindings row, BatchResultHandler handler) {
+    _symbolTable.pushScope();
+    Object result;
+    try {
+      SymbolMarshaller.loadSymbols(_symbolTable, row, _declaredTypes);
+      result = evaluate();
+    } catch (Exception e) {
+      handler.onError(row, MethodDispatcher.scriptException(e));
+      return;
+    } finally {
+      _symbolTable.popScope();
+    }
+    handler.onResult(row, result);
+  }
+
+  /**
+   * Evaluates every row of the columns, which must all have the same length. Symbols are kept from row to
+   * row and only get a new value, unless the value's type changes.
+   */
+  void evalColumns(Map<String, ? extends Iterable<?>> columns, BatchResultHandler handler) throws ScriptException {
+    int width = columns.size();
+    String[] names = new String[width];
+    Iterator<?>[] values = new Iterator<?>[width];
+    ISymbol[] symbols = new ISymbol[width];
+    int column = 0;
+    for (Map.Entry<String, ? extends Iterable<?>> e : columns.entrySet()) {
+      if (!SymbolMarshaller.isSymbolName(e.getKey())) throw new IllegalArgumentException("Not a valid symbol name: " + e.getKey());
+      names[column] = e.getKey();
+      values[column] = e.getValue().iterator();
+      column++;
+    }
+
+    Bindings row = new SimpleBindings();
+    _symbolTable.pushScope();
+    try {
+      while (width > 0 && values[0].hasNext()) {
+        for (int i = 0; i < width; i++) {
+          if (!values[i].hasNext()) throw new ScriptException("Column " + names[i] + " is shorter than column " + names[0]);
+          Object value = values[i].next();
+          row.put(names[i], value);
+          IType type = _declaredTypes == null ? null : _declaredTypes.get(names[i]);
+          if (type == null) {
+            type = SymbolMarshaller.typeOf(value);
+          }
+          if (symbols[i] == null || symbols[i].getType() != type) {
+            symbols[i] = GosuShop.createSymbol(names[i], type, value);
+            _symbolTable.putSymbol(symbols[i]);
+          } else {
+            symbols[i].setValue(value);
+          }
+        }
+        Object result;
+        try {
+          result = evaluate();
+        } catch (Exception e) {
+          handler.onError(row, MethodDispatcher.scriptException(e));
+          continue;
+        }
+        handler.onResult(row, result);
+      }
+      for (int i = 1; i < width; i++) {
+        if (values[i].hasNext()) throw new ScriptException("Column " + names[i] + " is longer than column " + names[0]);
+      }
+    } finally {
+      _symbolTable.popScope();
+    }
+  }
+
+  private Object evaluate() {
+    IProgramInstance instance = _instance != null ? _instance : _script.getGosuProgram().getProgramInstance();
+    if (_metrics == null && _profiler == null) {
+      return instance.evaluate(_symbols);
+    }
+    long start = System.nanoTime();
+    long cpuStart = _profiler == null ? 0 : _profiler.threadCpuNanos();
+    long allocatedStart = _profiler == null ? 0 : _profiler.threadAllocatedBytes();
+    boolean evaluated = false;
+    try {
+      Object result = instance.evaluate(_symbols);
+      evaluated = true;
+      return result;
+    } finally {
+      if (_metrics != null) {
+        _metrics.record(_script.getScriptId(), ScriptMetrics.Operation.EVAL, System.nanoTime() - start, evaluated);
+      }
+      if (_profiler != null) {
+        _profiler.record(_script.getScriptId(), ScriptMetrics.Operation.EVAL, start, cpuStart, allocatedStart);
+      }
+    }
+  }
+
+  void close() {
+    if (_instance != null) {
+      _script.releaseInstance(_instance);
+    }
+  }
+}
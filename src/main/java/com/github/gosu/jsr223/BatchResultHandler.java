@@ -0,0 +1,24 @@
+package com.github.gosu.jsr223;
+
+import javax.script.Bindings;
+import javax.script.ScriptException;
+
+/**
+ * Receives the outcome of each row of a batch evaluation as soon as the row has been evaluated, so that
+ * results never need to be held for the whole batch. Batches evaluated from a parallel stream call the
+ * handler from several threads at once.
+ *
+ * @see GosuCompiledScript#evalBatch(Iterable, BatchResultHandler)
+ */
+public interface BatchResultHandler {
+  /**
+   * @param row the bindings the script was evaluated against; for columnar batches a view that is
+   *            only valid during the call
+   */
+  void onResult(Bindings row, Object result);
+
+  /**
+   * Called when evaluating a row failed; the batch goes on with the next row unless this throws.
+   */
+  void onError(Bindings row, ScriptException error);
+}
@@ -0,0 +1,42 @@
+package com.github.gosu.jsr223;
+
+import javax.script.ScriptException;
+
+/**
+ * Outcome of compiling one script of a batch: either the compiled script or the error that kept it from
+ * compiling.
+ *
+ * @see GosuScriptEngine#compileAll
+ */
+public final class CompileResult {
+  private final GosuCompiledScript _script;
+  private final ScriptException _error;
+
+  CompileResult(GosuCompiledScript script, ScriptException error) {
+    _script = script;
+    _error = error;
+  }
+
+  public boolean isSuccess() {
+    return _error == null;
+  }
+
+  /**
+   * @return the compiled script, or null if compiling failed
+   */
+  public GosuCompiledScript getScript() {
+    return _script;
+  }
+
+  /**
+   * @return why compiling failed, or null if it succeeded
+   */
+  public ScriptException getError() {
+    return _error;
+  }
+
+  @Override
+  public String toString() {
+    return isSuccess() ? "CompileResult[ok]" : "CompileResult[" + _error.getMessage() + "]";
+  }
+}
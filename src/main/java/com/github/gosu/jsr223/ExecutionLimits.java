@@ -0,0 +1,19 @@
+package com.github.gosu.jsr223;
+
+/**
+ * Bounds on a single evaluation: wall-clock time and CPU time of the evaluating thread, in
+ * milliseconds, zero meaning unbounded.
+ */
+final class ExecutionLimits {
+  final long _timeoutMillis;
+  final long _cpuBudgetMillis;
+
+  ExecutionLimits(long timeoutMillis, long cpuBudgetMillis) {
+    _timeoutMillis = timeoutMillis;
+    _cpuBudgetMillis = cpuBudgetMillis;
+  }
+
+  boolean isUnbounded() {
+    return _timeoutMillis <= 0 && _cpuBudgetMillis <= 0;
+  }
+}
@@ -0,0 +1,227 @@
+package com.github.gosu.jsr223;
+
+import gw.lang.GosuShop;
+import gw.lang.parser.ISymbol;
+import gw.lang.parser.ISymbolTable;
+import gw.lang.reflect.IType;
+
+import javax.script.Bindings;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Thread-safe {@link Bindings} that track their own changes, so that handing them to a Gosu script is
+ * cheap. The Gosu type of each entry is resolved when the entry is first marshalled and then reused
+ * until the entry changes; a {@link #getVersion() version} counts every modification. Every evaluation
+ * gets symbols of its own, so a script that assigns to a binding changes neither the entry nor what
+ * scripts evaluating at the same time see.
+ * <p>
+ * The collection views are snapshots: changes must go through {@link #put} and {@link #remove} so that
+ * they are tracked.
+ * <p>
+ * As global bindings, e.g. through {@link javax.script.ScriptEngineManager#setBindings}, they let every
+ * evaluation reuse a snapshot of the globals that is only rebuilt after they change. The snapshots belong
+ * to the bindings, not to threads, so they go away with them.
+ */
+public class GosuBindings implements Bindings {
+  private final Map<String, Object> _values = new HashMap<String, Object>();
+  private volatile long _version;
+  // the entries as of some version, with the Gosu type of each value
+  private volatile Snapshot _snapshot;
+  // layers over the entries for evaluations to borrow, at most one per evaluation running at a time;
+  // dropped on every change, and checked against the version when borrowed, since a layer handed back
+  // after a change may slip in
+  private final Queue<SymbolMarshaller.GlobalLayer> _layers = new ConcurrentLinkedQueue<SymbolMarshaller.GlobalLayer>();
+
+  /**
+   * The entries that can be referenced from Gosu, with their types, as of one version; never modified once
+   * built, so they can be loaded into symbol tables without holding the lock.
+   */
+  static final class Snapshot {
+    final String[] _names;
+    final IType[] _types;
+    final Object[] _values;
+    final long _version;
+
+    Snapshot(String[] names, IType[] types, Object[] values, long version) {
+      _names = names;
+      _types = types;
+      _values = values;
+      _version = version;
+    }
+  }
+
+  public GosuBindings() {
+  }
+
+  public GosuBindings(Map<String, Object> values) {
+    putAll(values);
+  }
+
+  /**
+   * @return a counter that changes whenever an entry is added, replaced or removed
+   */
+  public long getVersion() {
+    return _version;
+  }
+
+  void loadSymbols(ISymbolTable symbolTable, Map<String, IType> declaredTypes) {
+    Snapshot snapshot = symbolSnapshot();
+    for (int i = 0; i < snapshot._names.length; i++) {
+      String name = snapshot._names[i];
+      IType type = declaredTypes == null ? null : declaredTypes.get(name);
+      symbolTable.putSymbol(GosuShop.createSymbol(name, type == null ? snapshot._types[i] : type, snapshot._values[i]));
+    }
+  }
+
+  /**
+   * @return a layer over the current entries, for one evaluation to use until it
+   *         {@link #releaseLayer releases} it
+   */
+  SymbolMarshaller.GlobalLayer acquireLayer() {
+    long version = _version;
+    SymbolMarshaller.GlobalLayer layer;
+    while ((layer = _layers.poll()) != null) {
+      if (layer._version == version) return layer;
+    }
+    return new SymbolMarshaller.GlobalLayer(symbolSnapshot());
+  }
+
+  /**
+   * Keeps a layer for later evaluations, unless the entries changed or the script assigned to one.
+   */
+  void releaseLayer(SymbolMarshaller.GlobalLayer layer) {
+    if (layer._version == _version && !layer.isWrittenTo()) {
+      _layers.offer(layer);
+    }
+  }
+
+  private Snapshot symbolSnapshot() {
+    Snapshot snapshot = _snapshot;
+    if (snapshot != null && snapshot._version == _version) {
+      return snapshot;
+    }
+    synchronized (this) {
+      List<String> names = new ArrayList<String>(_values.size());
+      List<IType> types = new ArrayList<IType>(_values.size());
+      List<Object> values = new ArrayList<Object>(_values.size());
+      for (Map.Entry<String, Object> e : _values.entrySet()) {
+        if (!SymbolMarshaller.isSymbolName(e.getKey())) continue;
+        names.add(e.getKey());
+        types.add(SymbolMarshaller.typeOf(e.getValue()));
+        values.add(e.getValue());
+      }
+      snapshot = new Snapshot(names.toArray(new String[names.size()]), types.toArray(new IType[types.size()]),
+                              values.toArray(), _version);
+      _snapshot = snapshot;
+      return snapshot;
+    }
+  }
+
+  @Override
+  public synchronized Object put(String name, Object value) {
+    checkKey(name);
+    Object old = _values.put(name, value);
+    _version++;
+    _layers.clear();
+    return old;
+  }
+
+  @Override
+  public synchronized void putAll(Map<? extends String, ? extends Object> toMerge) {
+    for (Map.Entry<? extends String, ? extends Object> e : toMerge.entrySet()) {
+      put(e.getKey(), e.getValue());
+    }
+  }
+
+  @Override
+  public synchronized Object remove(Object key) {
+    checkKey(key);
+    if (!_values.containsKey(key)) return null;
+    _version++;
+    _layers.clear();
+    return _values.remove(key);
+  }
+
+  @Override
+  public synchronized void clear() {
+    if (_values.isEmpty()) return;
+    _values.clear();
+    _version++;
+    _layers.clear();
+  }
+
+  @Override
+  public synchronized Object get(Object key) {
+    checkKey(key);
+    return _values.get(key);
+  }
+
+  @Override
+  public synchronized boolean containsKey(Object key) {
+    checkKey(key);
+    return _values.containsKey(key);
+  }
+
+  @Override
+  public synchronized boolean containsValue(Object value) {
+    return _values.containsValue(value);
+  }
+
+  @Override
+  public synchronized int size() {
+    return _values.size();
+  }
+
+  @Override
+  public synchronized boolean isEmpty() {
+    return _values.isEmpty();
+  }
+
+  @Override
+  public synchronized Set<String> keySet() {
+    return snapshot().keySet();
+  }
+
+  @Override
+  public synchronized Collection<Object> values() {
+    return snapshot().values();
+  }
+
+  @Override
+  public synchronized Set<Entry<String, Object>> entrySet() {
+    return snapshot().entrySet();
+  }
+
+  private Map<String, Object> snapshot() {
+    return Collections.unmodifiableMap(new HashMap<String, Object>(_values));
+  }
+
+  @Override
+  public synchronized boolean equals(Object o) {
+    return o == this || (o instanceof Map && _values.equals(o));
+  }
+
+  @Override
+  public synchronized int hashCode() {
+    return _values.hashCode();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return _values.toString();
+  }
+
+  private static void checkKey(Object key) {
+    if (key == null) throw new NullPointerException("key can not be null");
+    if (!(key instanceof String)) throw new ClassCastException("key should be a String");
+    if (((String) key).length() == 0) throw new IllegalArgumentException("key can not be empty");
+  }
+}
@@ -1,57 +1,132 @@
 package com.github.gosu.jsr223;
 
-import gw.lang.GosuShop;
 import gw.lang.parser.ExternalSymbolMapSymbolTableWrapper;
-import gw.lang.parser.GosuParserFactory;
 import gw.lang.parser.IGosuProgramParser;
 import gw.lang.parser.IParseResult;
 import gw.lang.parser.ISymbolTable;
 import gw.lang.parser.ParserOptions;
 import gw.lang.parser.exceptions.ParseResultsException;
 import gw.lang.reflect.IPropertyInfo;
-import gw.lang.reflect.TypeSystem;
+import gw.lang.reflect.IType;
 import gw.lang.reflect.gs.IGosuProgram;
 import gw.lang.reflect.gs.IProgramInstance;
 
 import javax.script.Bindings;
 import javax.script.CompiledScript;
+import javax.script.Invocable;
 import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
 import javax.script.ScriptException;
-import java.lang.reflect.InvocationHandler;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.WrongMethodTypeException;
 import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * Gosu implementation of CompiledScript, part of JSR-223.
+ * <p>
+ * A compiled script is also {@link Invocable} against its own program, so callers sharing one engine
+ * between threads can invoke functions on a specific script rather than whichever one the engine
+ * evaluated last.
+ * <p>
+ * The parsed program is immutable and may be shared freely: every {@link #eval(ScriptContext)} runs on
+ * a program instance of its own, fresh or taken from a small pool (see
+ * {@link GosuScriptEngine#setInstancePoolSize}), so program vars never leak between evaluations and
+ * concurrent evaluations never race. {@link Invocable} calls run on a separate, dedicated instance.
  */
-public class GosuCompiledScript extends CompiledScript {
-  private final IGosuProgram     _gosuProgram;
-  private final IProgramInstance _programInstance;
-  private final ISymbolTable     _symbolTable;
-  private final ScriptEngine     _engine;
-
-  GosuCompiledScript(String script, ScriptContext scriptContext, ScriptEngine engine) throws ScriptException {
+public class GosuCompiledScript extends CompiledScript implements Invocable {
+  private final IGosuProgram        _gosuProgram;
+  private final ProgramInstancePool _instancePool;
+  private final GosuScriptEngine    _engine;
+  private final Map<String, IType>  _declaredTypes;
+  private final String              _scriptId;
+  // the symbols invocations see, marshalled from _symbolContext when first needed
+  private volatile ExternalSymbolMapSymbolTableWrapper _symbolMap;
+  private ScriptContext _symbolContext;
+  private volatile IProgramInstance _invocationInstance;
+  private volatile Map<String, IPropertyInfo> _programVars;
+
+  /**
+   * @param declaredTypes the types bindings were declared with, or null to type every symbol from the
+   *                      class of its current value
+   * @param scriptId      what metrics call the script, or null if there is nothing better than its identity
+   */
+  GosuCompiledScript(String script, ScriptContext scriptContext, Map<String, IType> declaredTypes,
+                     GosuScriptEngine engine, String scriptId) throws ScriptException {
+    _engine = engine;
+    _declaredTypes = declaredTypes;
+    _scriptId = scriptId != null ? scriptId : "script@" + Integer.toHexString(System.identityHashCode(this));
+    ISymbolTable symbolTable = getSymbolTable(scriptContext);
+    _symbolMap = new ExternalSymbolMapSymbolTableWrapper(symbolTable);
+    ScriptMetrics metrics = engine.getFactory().getMetrics();
+    long start = metrics == null ? 0 : System.nanoTime();
+    boolean parsed = false;
     try {
-      _engine = engine;
+      _gosuProgram = parse(script, symbolTable, engine.getFactory().getParserPool());
+      parsed = true;
+      engine.getFactory().getProgramClassTracker().track(_gosuProgram);
+    } finally {
+      if (metrics != null) {
+        metrics.record(getScriptId(), ScriptMetrics.Operation.COMPILE, System.nanoTime() - start, parsed);
+      }
+    }
+    _instancePool = new ProgramInstancePool(_gosuProgram, engine.getInstancePoolSize());
+  }
 
-      // splitting to multiple lines to ease stack inspection
-      ParserOptions parserOptions = new ParserOptions();
+  /**
+   * Wraps a program that was already parsed, e.g. one found in the {@link ProgramCache}. The context
+   * and declared types must have the same signature the program was parsed against. The context is
+   * only marshalled if the script is ever invoked, since evaluations marshal their own.
+   */
+  GosuCompiledScript(IGosuProgram gosuProgram, ScriptContext scriptContext, Map<String, IType> declaredTypes,
+                     GosuScriptEngine engine, String scriptId) {
+    _engine = engine;
+    _declaredTypes = declaredTypes;
+    _scriptId = scriptId != null ? scriptId : "script@" + Integer.toHexString(System.identityHashCode(this));
+    _symbolContext = scriptContext;
+    _gosuProgram = gosuProgram;
+    _instancePool = new ProgramInstancePool(_gosuProgram, engine.getInstancePoolSize());
+  }
 
-      _symbolTable = getSymbolTable(scriptContext);
+  /**
+   * @return what metrics call this script: the {@link ScriptEngine#FILENAME} it was compiled with if
+   * any, otherwise the digest of its text or, when that was never computed, its identity
+   */
+  public String getScriptId() {
+    return _scriptId;
+  }
 
-      // TODO: if parser construction is expensive, create a thread-safe pool.
-      IGosuProgramParser parser = GosuParserFactory.createProgramParser();
+  IGosuProgram getGosuProgram() {
+    return _gosuProgram;
+  }
 
+  private static IGosuProgram parse(String script, ISymbolTable symbolTable, ParserPool parserPool) throws ScriptException {
+    // splitting to multiple lines to ease stack inspection
+    ParserOptions parserOptions = ProgramClassTracker.parserOptions();
+
+    IGosuProgramParser parser = parserPool.borrow();
+    boolean reusable = false;
+    try {
       // TODO: redirect parse errors to scriptContext.getErrWriter()
-      IParseResult parseResult = parser.parseExpressionOrProgram(script, _symbolTable, parserOptions);
-      _gosuProgram = parseResult.getProgram();
-      _programInstance = _gosuProgram.getProgramInstance();
+      IParseResult parseResult = parser.parseExpressionOrProgram(script, symbolTable, parserOptions);
+      reusable = true;
+      return parseResult.getProgram();
     } catch (ParseResultsException pre) {
+      reusable = true;
       throw new ScriptException(pre);
+    } finally {
+      parserPool.release(parser, reusable);
     }
   }
 
@@ -60,127 +135,387 @@ public class GosuCompiledScript extends CompiledScript {
     return _engine;
   }
 
+  /**
+   * Evaluates the script, within the timeout and CPU budget configured on the engine or in the context,
+   * if any.
+   */
   @Override
   public Object eval(ScriptContext context) throws ScriptException {
-    ISymbolTable localSymbolTable = getSymbolTable(context);
+    ExecutionLimits limits = _engine.getExecutionLimits(context);
+    if (limits == null) {
+      return evalPooled(context);
+    }
+    return ScriptExecutor.call(evaluation(context), limits);
+  }
 
-    Object ret = _programInstance.evaluate(new ExternalSymbolMapSymbolTableWrapper(localSymbolTable));
-    unloadSymbolTable(context);
+  /**
+   * Starts evaluating the script on the engine's {@link GosuScriptEngine#setAsyncExecutor asynchronous
+   * executor}, within the engine's or context's limits if any. Cancelling the returned future interrupts
+   * the evaluation.
+   */
+  public CompletableFuture<Object> evalAsync(ScriptContext context) {
+    return ScriptExecutor.async(evaluation(context), _engine.getExecutionLimits(context), _engine.getAsyncExecutor());
+  }
 
-    return ret;
+  private Callable<Object> evaluation(final ScriptContext context) {
+    return new Callable<Object>() {
+      @Override
+      public Object call() {
+        return evalPooled(context);
+      }
+    };
   }
 
-  Object invokeFunction(String name, Object... args) throws ScriptException, NoSuchMethodException {
+  private Object evalPooled(ScriptContext context) {
+    IProgramInstance instance = _instancePool.borrow();
     try {
-      args = functionArgs(args);
-      final Method method = findMethodByNameAndArgs(_programInstance.getClass(), name, args);
-      return method.invoke(_programInstance, args);
-    } catch (NoSuchMethodException nsme) {
-      throw nsme;
-    } catch (Exception e) {
-      throw new ScriptException(e);
+      return eval(context, instance);
+    } finally {
+      // a lazy view of the vars keeps reading from the instance, so it must not be reused
+      if (context == null || _engine.getWriteBackMode(context) != WriteBackMode.LAZY) {
+        _instancePool.release(instance);
+      }
     }
   }
 
-  Object invokeMethod(Object thiz, String name, Object... args) throws ScriptException, NoSuchMethodException {
-    try {
-      final Method method = findMethodByNameAndArgs(thiz.getClass(), name, args);
-      return method.invoke(thiz, args);
-    } catch (NoSuchMethodException nsme) {
-      throw nsme;
-    } catch (Exception e) {
-      throw new ScriptException(e);
-    }
+  IProgramInstance borrowInstance() {
+    return _instancePool.borrow();
   }
 
-  <T> T getInterface(Class<T> clasz) {
-    return (T) Proxy.newProxyInstance(clasz.getClassLoader(),
-           new Class[]{clasz},
-           new InvocableHandler(_programInstance));
+  void releaseInstance(IProgramInstance instance) {
+    _instancePool.release(instance);
   }
 
-  <T> T getInterface(Object thiz, Class<T> clasz) {
-    return (T) Proxy.newProxyInstance(clasz.getClassLoader(),
-           new Class[] {clasz},
-           new InvocableHandler(thiz));
+  /**
+   * Evaluates the script once per row, handing each result to the handler as soon as it is available.
+   * Rows take the place of the engine scope, over the engine's global bindings. The per-evaluation setup
+   * is done once for the whole batch, and program vars are not copied back into the rows; a script that
+   * computes several outputs should return them. Execution limits do not apply to batches.
+   */
+  public void evalBatch(Iterable<? extends Bindings> rows, BatchResultHandler handler) {
+    evalBatch(rows, _engine.getContext(), handler);
   }
 
-  private static Method findMethodByNameAndArgs(Class target, String name, Object[] args) throws NoSuchMethodException {
-    final int numArgs = args == null ? 0 : args.length;
-    for( Method m : target.getDeclaredMethods() ) {
-      if( m.getName().equals( name ) ) {
-        // match length and types in parameter list
-        final Class<?>[] formalParams = m.getParameterTypes();
-        if (formalParams.length != numArgs) continue;
+  /**
+   * Like {@link #evalBatch(Iterable, BatchResultHandler)}, over the global bindings of {@code context},
+   * and printing to its writers if the engine {@link GosuScriptEngine#setRedirectStandardStreams redirects}.
+   */
+  public void evalBatch(Iterable<? extends Bindings> rows, ScriptContext context, BatchResultHandler handler) {
+    StandardStreams.Redirect redirect = redirectForBatch(context);
+    BatchEvaluator evaluator = batchEvaluator(context);
+    try {
+      for (Bindings row : rows) {
+        evaluator.eval(row, handler);
+      }
+    } finally {
+      evaluator.close();
+      if (redirect != null) {
+        redirect.close();
+      }
+    }
+  }
+
+  /**
+   * Like {@link #evalBatch(Iterable, BatchResultHandler)}, but a parallel stream is evaluated in
+   * parallel, with one symbol table per thread, and the handler must be thread-safe.
+   */
+  public void evalBatch(Stream<? extends Bindings> rows, BatchResultHandler handler) {
+    evalBatch(rows, _engine.getContext(), handler);
+  }
 
-        for (int i = 0; i < formalParams.length; ++i) {
-          if (! formalParams[i].isAssignableFrom(args[i].getClass())) {
-            continue;
+  /**
+   * Like {@link #evalBatch(Stream, BatchResultHandler)}, over the global bindings of {@code context}.
+   */
+  public void evalBatch(Stream<? extends Bindings> rows, final ScriptContext context, final BatchResultHandler handler) {
+    final Queue<BatchEvaluator> evaluators = new ConcurrentLinkedQueue<BatchEvaluator>();
+    final ThreadLocal<BatchEvaluator> threadEvaluator = new ThreadLocal<BatchEvaluator>() {
+      @Override
+      protected BatchEvaluator initialValue() {
+        BatchEvaluator evaluator = batchEvaluator(context);
+        evaluators.add(evaluator);
+        return evaluator;
+      }
+    };
+    try {
+      rows.forEach(new Consumer<Bindings>() {
+        @Override
+        public void accept(Bindings row) {
+          // routing is per thread, and the stream may hop threads, so redirect row by row
+          StandardStreams.Redirect redirect = redirectForBatch(context);
+          try {
+            threadEvaluator.get().eval(row, handler);
+          } finally {
+            if (redirect != null) {
+              redirect.close();
+            }
           }
         }
+      });
+    } finally {
+      for (BatchEvaluator evaluator : evaluators) {
+        evaluator.close();
+      }
+    }
+  }
 
-        return m;
+  /**
+   * Evaluates the script once per row of columnar input: row {@code i} binds each column's name to its
+   * {@code i}th value. Columns must all have the same length. Like
+   * {@link #evalBatch(Iterable, BatchResultHandler)}, but symbols are reused from row to row too.
+   *
+   * @throws ScriptException if the columns differ in length; rows before the mismatch have been handled
+   */
+  public void evalColumns(Map<String, ? extends Iterable<?>> columns, BatchResultHandler handler) throws ScriptException {
+    evalColumns(columns, _engine.getContext(), handler);
+  }
+
+  /**
+   * Like {@link #evalColumns(Map, BatchResultHandler)}, over the global bindings of {@code context}.
+   */
+  public void evalColumns(Map<String, ? extends Iterable<?>> columns, ScriptContext context, BatchResultHandler handler)
+      throws ScriptException {
+    StandardStreams.Redirect redirect = redirectForBatch(context);
+    BatchEvaluator evaluator = batchEvaluator(context);
+    try {
+      evaluator.evalColumns(columns, handler);
+    } finally {
+      evaluator.close();
+      if (redirect != null) {
+        redirect.close();
       }
     }
+  }
 
-    throw new NoSuchMethodException("Could not find method named " +name);
+  private BatchEvaluator batchEvaluator(ScriptContext context) {
+    return new BatchEvaluator(this, context == null ? null : context.getBindings(ScriptContext.GLOBAL_SCOPE),
+                              _declaredTypes, _engine.getFactory().getMetrics(), _engine.getFactory().getProfiler());
   }
 
-  class InvocableHandler implements InvocationHandler {
-    final Object _target;
+  private StandardStreams.Redirect redirectForBatch(ScriptContext context) {
+    return context != null && _engine.isRedirectStandardStreams() ? StandardStreams.redirect(context) : null;
+  }
+
+  /**
+   * Evaluates on the instance that {@link Invocable} calls use, so that functions invoked afterwards
+   * see the program vars this evaluation set. Only for scripts that are not shared, i.e. the
+   * single-use scripts behind {@link GosuScriptEngine#eval(String, ScriptContext)}.
+   */
+  Object evalForInvocation(final ScriptContext context) throws ScriptException {
+    ExecutionLimits limits = _engine.getExecutionLimits(context);
+    if (limits == null) {
+      return eval(context, invocationInstance());
+    }
+    return ScriptExecutor.call(new Callable<Object>() {
+      @Override
+      public Object call() {
+        return eval(context, invocationInstance());
+      }
+    }, limits);
+  }
 
-    InvocableHandler(Object target) {
-      _target = target;
+  private Object eval(ScriptContext context, IProgramInstance instance) {
+    GosuScriptEngineFactory factory = _engine.getFactory();
+    ScriptMetrics metrics = factory.getMetrics();
+    ScriptProfiler profiler = factory.getProfiler();
+    if (metrics != null || profiler != null) {
+      return evalInstrumented(context, instance, metrics, profiler);
     }
+    SymbolMarshaller.EvalSymbols symbols = SymbolMarshaller.symbolsForEval(context, _declaredTypes);
 
-    @Override
-    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-      if (_target == _programInstance) {
-        return invokeFunction(method.getName(), args);
-      } else {
-        return invokeMethod(_target, method.getName(), args);
+    StandardStreams.Redirect redirect =
+        context != null && _engine.isRedirectStandardStreams() ? StandardStreams.redirect(context) : null;
+    Object ret;
+    try {
+      ret = instance.evaluate(new ExternalSymbolMapSymbolTableWrapper(symbols._symbolTable));
+    } finally {
+      if (redirect != null) {
+        redirect.close();
       }
+      symbols.release();
     }
-  };
+    unloadSymbolTable(context, instance);
 
-  private Object[] functionArgs(Object[] args) {
-    if (args == null) {
-      return new Object[] { new ExternalSymbolMapSymbolTableWrapper(_symbolTable) };
+    return ret;
+  }
+
+  /**
+   * {@link #eval(ScriptContext, IProgramInstance)}, timing each step and profiling the whole; kept apart
+   * so that the uninstrumented path stays as lean as it was.
+   *
+   * @param metrics  may be null
+   * @param profiler may be null
+   */
+  private Object evalInstrumented(ScriptContext context, IProgramInstance instance, ScriptMetrics metrics,
+                                  ScriptProfiler profiler) {
+    String scriptId = getScriptId();
+    long start = System.nanoTime();
+    long cpuStart = profiler == null ? 0 : profiler.threadCpuNanos();
+    long allocatedStart = profiler == null ? 0 : profiler.threadAllocatedBytes();
+    try {
+      SymbolMarshaller.EvalSymbols symbols = SymbolMarshaller.symbolsForEval(context, _declaredTypes);
+      long loaded = System.nanoTime();
+      if (metrics != null) {
+        metrics.record(scriptId, ScriptMetrics.Operation.LOAD_BINDINGS, loaded - start, true);
+      }
+
+      StandardStreams.Redirect redirect =
+          context != null && _engine.isRedirectStandardStreams() ? StandardStreams.redirect(context) : null;
+      Object ret;
+      boolean evaluated = false;
+      try {
+        ret = instance.evaluate(new ExternalSymbolMapSymbolTableWrapper(symbols._symbolTable));
+        evaluated = true;
+      } finally {
+        if (redirect != null) {
+          redirect.close();
+        }
+        symbols.release();
+        if (metrics != null) {
+          metrics.record(scriptId, ScriptMetrics.Operation.EVAL, System.nanoTime() - loaded, evaluated);
+        }
+      }
+      long unloading = System.nanoTime();
+      unloadSymbolTable(context, instance);
+      if (metrics != null) {
+        metrics.record(scriptId, ScriptMetrics.Operation.UNLOAD_BINDINGS, System.nanoTime() - unloading, true);
+      }
+
+      return ret;
+    } finally {
+      if (profiler != null) {
+        profiler.record(scriptId, ScriptMetrics.Operation.EVAL, start, cpuStart, allocatedStart);
+      }
     }
-    Object[] args2 = new Object[args.length + 1];
-    System.arraycopy( args, 0, args2, 1, args.length );
-    args2[0] = new ExternalSymbolMapSymbolTableWrapper(_symbolTable);
-    return args2;
   }
 
+  private IProgramInstance invocationInstance() {
+    IProgramInstance instance = _invocationInstance;
+    if (instance == null) {
+      synchronized (this) {
+        instance = _invocationInstance;
+        if (instance == null) {
+          instance = _gosuProgram.getProgramInstance();
+          _invocationInstance = instance;
+        }
+      }
+    }
+    return instance;
+  }
 
-  private ISymbolTable getSymbolTable(ScriptContext context) {
-    ISymbolTable result = GosuShop.createSymbolTable();
+  @Override
+  public Object invokeFunction(String name, Object... args) throws ScriptException, NoSuchMethodException {
+    return invoke(ScriptMetrics.Operation.INVOKE_FUNCTION, invocationInstance(), name, functionArgs(args));
+  }
+
+  @Override
+  public Object invokeMethod(Object thiz, String name, Object... args) throws ScriptException, NoSuchMethodException {
+    if (thiz == null) throw new IllegalArgumentException("Cannot invoke " + name + " on null");
+    return invoke(ScriptMetrics.Operation.INVOKE_METHOD, thiz, name, args);
+  }
 
-    if (context != null) {
-      loadSymbolTable(context, result);
+  private Object invoke(ScriptMetrics.Operation operation, Object target, String name, Object[] args)
+      throws ScriptException, NoSuchMethodException {
+    ScriptMetrics metrics = _engine.getFactory().getMetrics();
+    ScriptProfiler profiler = _engine.getFactory().getProfiler();
+    if (metrics == null && profiler == null) {
+      return MethodDispatcher.invoke(target, name, args);
     }
+    long start = System.nanoTime();
+    long cpuStart = profiler == null ? 0 : profiler.threadCpuNanos();
+    long allocatedStart = profiler == null ? 0 : profiler.threadAllocatedBytes();
+    boolean invoked = false;
+    try {
+      Object ret = MethodDispatcher.invoke(target, name, args);
+      invoked = true;
+      return ret;
+    } finally {
+      if (metrics != null) {
+        metrics.record(getScriptId(), operation, System.nanoTime() - start, invoked);
+      }
+      if (profiler != null) {
+        profiler.record(getScriptId(), operation, start, cpuStart, allocatedStart);
+      }
+    }
+  }
 
-    return result;
+  /**
+   * Invokes a function on the engine's {@link GosuScriptEngine#setAsyncExecutor asynchronous executor},
+   * within the limits of the engine's context if any. The future fails with the {@link ScriptException}
+   * or {@link NoSuchMethodException} the synchronous call would throw.
+   */
+  public CompletableFuture<Object> invokeFunctionAsync(final String name, final Object... args) {
+    return ScriptExecutor.async(new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        return invokeFunction(name, args);
+      }
+    }, _engine.getExecutionLimits(_engine.getContext()), _engine.getAsyncExecutor());
+  }
+
+  @Override
+  public <T> T getInterface(Class<T> clasz) {
+    return InterfaceBinder.bind(clasz, invocationInstance(), symbolMap());
   }
 
-  private void loadSymbolTable(ScriptContext context, ISymbolTable result) {
-    Bindings globalBindings = context.getBindings(ScriptContext.GLOBAL_SCOPE);
-    if (globalBindings != null) {
-      loadSymbolsFromBindings(result, globalBindings);
-      result.pushScope();
+  @Override
+  public <T> T getInterface(Object thiz, Class<T> clasz) {
+    if (thiz == null) throw new IllegalArgumentException("Cannot implement " + clasz + " on null");
+    return InterfaceBinder.bind(clasz, thiz);
+  }
+
+  private Object[] functionArgs(Object[] args) {
+    if (args == null) {
+      return new Object[] { symbolMap() };
     }
-    Bindings bindings = context.getBindings(ScriptContext.ENGINE_SCOPE);
-    if (bindings != null) {
-      loadSymbolsFromBindings(result, bindings);
+    Object[] args2 = new Object[args.length + 1];
+    System.arraycopy( args, 0, args2, 1, args.length );
+    args2[0] = symbolMap();
+    return args2;
+  }
+
+  /**
+   * Resolves a function of the script once, for calls that skip lookup, argument arrays and, where the
+   * function declares primitives, boxing; see {@link ScriptFunction}.
+   *
+   * @param returnType     the type the caller wants back, e.g. {@code double.class}
+   * @param parameterTypes the types the caller passes, which also select among overloads
+   * @throws NoSuchMethodException if there is no such function, or it cannot be called with these types
+   */
+  public ScriptFunction getFunction(String name, Class<?> returnType, Class<?>... parameterTypes)
+      throws NoSuchMethodException {
+    Object instance = invocationInstance();
+    Class<?>[] argTypes = new Class<?>[parameterTypes.length + 1];
+    argTypes[0] = ExternalSymbolMapSymbolTableWrapper.class;
+    System.arraycopy(parameterTypes, 0, argTypes, 1, parameterTypes.length);
+    Method method = MethodDispatcher.resolve(instance.getClass(), name, argTypes);
+
+    MethodHandle handle = MethodDispatcher.boundHandle(method, instance, new Object[] { symbolMap() });
+    MethodType type = MethodType.methodType(returnType, parameterTypes);
+    try {
+      return new ScriptFunction(name, handle.asType(type));
+    } catch (WrongMethodTypeException e) {
+      throw new NoSuchMethodException(name + handle.type() + " cannot be called as " + type);
     }
   }
 
-  private void loadSymbolsFromBindings(ISymbolTable result, Bindings bindings) {
-    for (String k : bindings.keySet()) {
-      Object v = bindings.get(k);
-      result.putSymbol(GosuShop.createSymbol(k, TypeSystem.get(v.getClass()), v));
+
+  private ISymbolTable getSymbolTable(ScriptContext context) {
+    return SymbolMarshaller.symbolTableFor(context, _declaredTypes);
+  }
+
+  private ExternalSymbolMapSymbolTableWrapper symbolMap() {
+    ExternalSymbolMapSymbolTableWrapper symbolMap = _symbolMap;
+    if (symbolMap == null) {
+      synchronized (this) {
+        symbolMap = _symbolMap;
+        if (symbolMap == null) {
+          symbolMap = new ExternalSymbolMapSymbolTableWrapper(getSymbolTable(_symbolContext));
+          _symbolMap = symbolMap;
+          _symbolContext = null;
+        }
+      }
     }
+    return symbolMap;
   }
 
   // These show up in the propertyinfo list but shouldn't be returned.
@@ -190,15 +525,50 @@ public class GosuCompiledScript extends CompiledScript {
     filterSymbols.add("Class");
   }
 
-  private void unloadSymbolTable(ScriptContext context) {
-    if (context == null) return;
+  /**
+   * @return the program's vars by display name, looked up once per program
+   */
+  private Map<String, IPropertyInfo> programVars() {
+    Map<String, IPropertyInfo> vars = _programVars;
+    if (vars == null) {
+      vars = new LinkedHashMap<String, IPropertyInfo>();
+      for (IPropertyInfo p : _gosuProgram.getTypeInfo().getProperties(_gosuProgram)) {
+        if (filterSymbols.contains(p.getName())) continue;
+        vars.put(p.getDisplayName(), p);
+      }
+      vars = Collections.unmodifiableMap(vars);
+      _programVars = vars;
+    }
+    return vars;
+  }
 
-    final List<? extends IPropertyInfo> properties = _gosuProgram.getTypeInfo().getProperties(_gosuProgram);
-    for (IPropertyInfo p : properties) {
-      if (filterSymbols.contains(p.getName())) continue;
+  /**
+   * @return whether the program declares no vars, so that one instance can evaluate it for any number of
+   * threads at once
+   */
+  boolean isStateless() {
+    return programVars().isEmpty();
+  }
+
+  Set<String> getProgramVarNames() {
+    return programVars().keySet();
+  }
 
-      // TODO: is it possible to overwrite something that is in the global scope?  Or does var foo always go to the local scope?
-      context.getBindings(ScriptContext.ENGINE_SCOPE).put(p.getDisplayName(), p.getAccessor().getValue(_programInstance));
+  private void unloadSymbolTable(ScriptContext context, IProgramInstance instance) {
+    if (context == null) return;
+
+    switch (_engine.getWriteBackMode(context)) {
+      case NONE:
+        return;
+      case LAZY:
+        context.setAttribute(GosuScriptEngine.PROGRAM_VARS, new ProgramVarBindings(programVars(), instance), ScriptContext.ENGINE_SCOPE);
+        return;
+      default:
+        Bindings engineBindings = context.getBindings(ScriptContext.ENGINE_SCOPE);
+        for (Map.Entry<String, IPropertyInfo> var : programVars().entrySet()) {
+          // TODO: is it possible to overwrite something that is in the global scope?  Or does var foo always go to the local scope?
+          engineBindings.put(var.getKey(), var.getValue().getAccessor().getValue(instance));
+        }
     }
   }
 }
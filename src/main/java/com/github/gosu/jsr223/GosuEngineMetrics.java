@@ -0,0 +1,133 @@
+package com.github.gosu.jsr223;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes a {@link MetricsRecorder}, and the factory's cache, parser pool and program class counters,
+ * through JMX.
+ */
+final class GosuEngineMetrics implements GosuEngineMetricsMBean {
+  private final GosuScriptEngineFactory _factory;
+  private final MetricsRecorder _recorder;
+
+  GosuEngineMetrics(GosuScriptEngineFactory factory, MetricsRecorder recorder) {
+    _factory = factory;
+    _recorder = recorder;
+  }
+
+  @Override
+  public int getProgramCacheSize() {
+    return _factory.getProgramCache().size();
+  }
+
+  @Override
+  public long getProgramCacheHits() {
+    return _factory.getProgramCache().getHits();
+  }
+
+  @Override
+  public long getProgramCacheMisses() {
+    return _factory.getProgramCache().getMisses();
+  }
+
+  @Override
+  public long getProgramCacheEvictions() {
+    return _factory.getProgramCache().getEvictions();
+  }
+
+  @Override
+  public long getProgramClassesCreated() {
+    return _factory.getProgramClassesCreated();
+  }
+
+  @Override
+  public int getLiveProgramClasses() {
+    return _factory.getLiveProgramClasses();
+  }
+
+  @Override
+  public int getParserPoolIdle() {
+    return _factory.getParserPool().getIdle();
+  }
+
+  @Override
+  public int getParserPoolInUse() {
+    return _factory.getParserPool().getInUse();
+  }
+
+  @Override
+  public long getParserPoolCreated() {
+    return _factory.getParserPool().getCreated();
+  }
+
+  @Override
+  public double getParserPoolBorrowMeanMillis() {
+    return _factory.getParserPool().getAverageBorrowNanos() / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  @Override
+  public long getCompileCount() {
+    return totals(ScriptMetrics.Operation.COMPILE).getCount();
+  }
+
+  @Override
+  public double getCompileMeanMillis() {
+    return totals(ScriptMetrics.Operation.COMPILE).getMeanMillis();
+  }
+
+  @Override
+  public long getEvalCount() {
+    return totals(ScriptMetrics.Operation.EVAL).getCount();
+  }
+
+  @Override
+  public long getEvalFailures() {
+    return totals(ScriptMetrics.Operation.EVAL).getFailures();
+  }
+
+  @Override
+  public double getEvalMeanMillis() {
+    return totals(ScriptMetrics.Operation.EVAL).getMeanMillis();
+  }
+
+  @Override
+  public double getEvalP99Millis() {
+    return totals(ScriptMetrics.Operation.EVAL).getPercentileNanos(99) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  @Override
+  public long getInvokeCount() {
+    return totals(ScriptMetrics.Operation.INVOKE_FUNCTION).getCount() + totals(ScriptMetrics.Operation.INVOKE_METHOD).getCount();
+  }
+
+  @Override
+  public double getInvokeMeanMillis() {
+    OperationStats functions = totals(ScriptMetrics.Operation.INVOKE_FUNCTION);
+    OperationStats methods = totals(ScriptMetrics.Operation.INVOKE_METHOD);
+    long count = functions.getCount() + methods.getCount();
+    return count == 0 ? 0
+        : (functions.getTotalNanos() + methods.getTotalNanos()) / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  @Override
+  public String describe(String operation, String scriptId) {
+    ScriptMetrics.Operation op = operation(operation);
+    OperationStats stats = scriptId == null || scriptId.length() == 0 ? totals(op) : _recorder.getStats(scriptId, op);
+    return stats == null ? "no such script: " + scriptId : stats.toString();
+  }
+
+  @Override
+  public String[] slowestScripts(String operation, int n) {
+    List<String> slowest = _recorder.getSlowestScripts(operation(operation), n);
+    return slowest.toArray(new String[slowest.size()]);
+  }
+
+  private OperationStats totals(ScriptMetrics.Operation operation) {
+    return _recorder.getTotals(operation);
+  }
+
+  private static ScriptMetrics.Operation operation(String name) {
+    return ScriptMetrics.Operation.valueOf(name.trim().toUpperCase());
+  }
+}
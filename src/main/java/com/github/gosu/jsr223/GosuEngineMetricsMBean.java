@@ -0,0 +1,54 @@
+package com.github.gosu.jsr223;
+
+/**
+ * JMX view of the engines of one {@link GosuScriptEngineFactory}, registered by
+ * {@link GosuScriptEngineFactory#enableMetrics()}. Operation names are those of
+ * {@link ScriptMetrics.Operation}; times are in milliseconds.
+ */
+public interface GosuEngineMetricsMBean {
+  int getProgramCacheSize();
+
+  long getProgramCacheHits();
+
+  long getProgramCacheMisses();
+
+  long getProgramCacheEvictions();
+
+  long getProgramClassesCreated();
+
+  int getLiveProgramClasses();
+
+  int getParserPoolIdle();
+
+  int getParserPoolInUse();
+
+  long getParserPoolCreated();
+
+  double getParserPoolBorrowMeanMillis();
+
+  long getCompileCount();
+
+  double getCompileMeanMillis();
+
+  long getEvalCount();
+
+  long getEvalFailures();
+
+  double getEvalMeanMillis();
+
+  double getEvalP99Millis();
+
+  long getInvokeCount();
+
+  double getInvokeMeanMillis();
+
+  /**
+   * @return a summary of the operation, overall or, given a script identifier, for that script
+   */
+  String describe(String operation, String scriptId);
+
+  /**
+   * @return the identifiers of the {@code n} scripts that spent the most time in the operation
+   */
+  String[] slowestScripts(String operation, int n);
+}
@@ -0,0 +1,157 @@
+package com.github.gosu.jsr223;
+
+import gw.lang.GosuShop;
+import gw.lang.parser.ExternalSymbolMapSymbolTableWrapper;
+import gw.lang.parser.ISymbol;
+import gw.lang.parser.ISymbolTable;
+import gw.lang.reflect.IType;
+import gw.lang.reflect.gs.IProgramInstance;
+
+import javax.script.Bindings;
+import javax.script.ScriptException;
+import java.util.Map;
+
+/**
+ * A compiled pure expression, such as {@code order.Total > 100}, evaluated with as little per-call work
+ * as possible; see {@link GosuScriptEngine#compileExpression}.
+ * <p>
+ * An expression declares no program vars, so its program has no state of its own and one program
+ * instance serves every thread. Each thread keeps a symbol table holding one symbol per declared binding,
+ * created once with its declared type; an evaluation only sets the symbols' values, evaluates, and
+ * clears them again. Nothing is written back, standard streams are not redirected, and metrics,
+ * profiling and execution limits do not apply.
+ * <p>
+ * The expression sees exactly its declared bindings: not the engine's global scope, nor anything else
+ * bound alongside them.
+ */
+public final class GosuExpression {
+  private final GosuCompiledScript _script;
+  private final IProgramInstance _instance;
+  private final String[] _names;
+  private final IType[] _types;
+  private final ThreadLocal<Frame> _frames = new ThreadLocal<Frame>() {
+    @Override
+    protected Frame initialValue() {
+      return new Frame(_names, _types);
+    }
+  };
+
+  /**
+   * One thread's symbols.
+   */
+  private static final class Frame {
+    final ISymbol[] _symbols;
+    final ExternalSymbolMapSymbolTableWrapper _symbolMap;
+    // set while an evaluation on the thread holds the symbols
+    boolean _inUse;
+
+    Frame(String[] names, IType[] types) {
+      ISymbolTable symbolTable = GosuShop.createSymbolTable();
+      _symbols = new ISymbol[names.length];
+      for (int i = 0; i < names.length; i++) {
+        _symbols[i] = GosuShop.createSymbol(names[i], types[i], null);
+        symbolTable.putSymbol(_symbols[i]);
+      }
+      _symbolMap = new ExternalSymbolMapSymbolTableWrapper(symbolTable);
+    }
+  }
+
+  /**
+   * @throws ScriptException if the script declares vars, so is not a pure expression
+   */
+  GosuExpression(GosuCompiledScript script, Map<String, IType> declaredTypes) throws ScriptException {
+    if (!script.isStateless()) {
+      throw new ScriptException("Not a pure expression; it declares " + script.getProgramVarNames());
+    }
+    _script = script;
+    // never returned to the pool: it is shared by every evaluation of the expression
+    _instance = script.borrowInstance();
+    _names = declaredTypes.keySet().toArray(new String[declaredTypes.size()]);
+    _types = new IType[_names.length];
+    for (int i = 0; i < _names.length; i++) {
+      _types[i] = declaredTypes.get(_names[i]);
+    }
+  }
+
+  /**
+   * @return the names of the declared bindings, in the order {@link #evalWith} takes their values
+   */
+  public String[] getNames() {
+    return _names.clone();
+  }
+
+  /**
+   * Evaluates the expression with the declared bindings taken from {@code bindings}; missing ones are
+   * null.
+   */
+  public Object eval(Bindings bindings) throws ScriptException {
+    Frame frame = acquireFrame();
+    try {
+      for (int i = 0; i < _names.length; i++) {
+        frame._symbols[i].setValue(bindings.get(_names[i]));
+      }
+    } catch (RuntimeException e) {
+      releaseFrame(frame);
+      throw e;
+    }
+    return evaluate(frame);
+  }
+
+  /**
+   * Evaluates the expression with the values of the declared bindings given positionally, in the order
+   * of {@link #getNames()}, without going through a {@link Bindings} map at all.
+   */
+  public Object evalWith(Object... values) throws ScriptException {
+    if (values.length != _names.length) {
+      throw new IllegalArgumentException("Expected " + _names.length + " values, got " + values.length);
+    }
+    Frame frame = acquireFrame();
+    for (int i = 0; i < values.length; i++) {
+      frame._symbols[i].setValue(values[i]);
+    }
+    return evaluate(frame);
+  }
+
+  /**
+   * Evaluates the expression as a predicate: true only if it evaluates to {@link Boolean#TRUE}.
+   */
+  public boolean test(Object... values) throws ScriptException {
+    return Boolean.TRUE.equals(evalWith(values));
+  }
+
+  /**
+   * @return the thread's frame, or a frame of its own for an evaluation made while the thread's is in
+   *         use, by a call back into the expression from within its own evaluation
+   */
+  private Frame acquireFrame() {
+    Frame frame = _frames.get();
+    if (frame._inUse) return new Frame(_names, _types);
+    frame._inUse = true;
+    return frame;
+  }
+
+  private Object evaluate(Frame frame) throws ScriptException {
+    try {
+      return _instance.evaluate(frame._symbolMap);
+    } catch (RuntimeException e) {
+      throw MethodDispatcher.scriptException(e);
+    } finally {
+      releaseFrame(frame);
+    }
+  }
+
+  private static void releaseFrame(Frame frame) {
+    // don't keep the caller's objects reachable from the thread
+    for (ISymbol symbol : frame._symbols) {
+      symbol.setValue(null);
+    }
+    frame._inUse = false;
+  }
+
+  /**
+   * @return the compiled script the expression runs, e.g. to evaluate it with the full machinery
+   */
+  public GosuCompiledScript getScript() {
+    return _script;
+  }
+}
@@ -0,0 +1,108 @@
+package com.github.gosu.jsr223;
+
+import gw.lang.Gosu;
+
+import javax.script.ScriptException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Process-wide, one-time initialization of the Gosu type system. It can run on the first thread that
+ * needs Gosu, or be started ahead of time on a background thread; either way it runs once and every
+ * other caller waits for it. If it fails, every caller waiting for it fails, and the next caller starts
+ * it over.
+ */
+final class GosuRuntime {
+  private static final AtomicReference<FutureTask<Void>> INIT = new AtomicReference<FutureTask<Void>>(newInit());
+
+  private GosuRuntime() {
+  }
+
+  private static FutureTask<Void> newInit() {
+    return new FutureTask<Void>(new Callable<Void>() {
+      @Override
+      public Void call() {
+        Gosu.init();
+        return null;
+      }
+    });
+  }
+
+  /**
+   * @return the initialization that is done, running or yet to run, in place of one that failed
+   */
+  private static FutureTask<Void> current() {
+    FutureTask<Void> init = INIT.get();
+    if (init.isDone() && hasFailed(init)) {
+      INIT.compareAndSet(init, newInit());
+      init = INIT.get();
+    }
+    return init;
+  }
+
+  private static boolean hasFailed(Future<?> done) {
+    try {
+      done.get();
+      return false;
+    } catch (ExecutionException e) {
+      return true;
+    } catch (CancellationException e) {
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Initializes Gosu on the calling thread unless that already happened or is happening elsewhere,
+   * then waits until it is done.
+   */
+  static void init() throws ScriptException {
+    FutureTask<Void> init = current();
+    if (!init.isDone()) {
+      // only the first call to run() does anything
+      init.run();
+    }
+    await(init);
+  }
+
+  /**
+   * Starts initialization on a daemon thread if it has not started yet.
+   *
+   * @return completes once Gosu is initialized
+   */
+  static Future<Void> initInBackground() {
+    FutureTask<Void> init = current();
+    if (!init.isDone()) {
+      startDaemon("Gosu init", init);
+    }
+    return init;
+  }
+
+  static boolean isInitialized() {
+    FutureTask<Void> init = INIT.get();
+    return init.isDone() && !hasFailed(init);
+  }
+
+  static void startDaemon(String name, Runnable task) {
+    Thread thread = new Thread(task, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  static <T> T await(Future<T> future) throws ScriptException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ScriptException(e);
+    } catch (ExecutionException e) {
+      throw MethodDispatcher.scriptException(e.getCause());
+    }
+  }
+}
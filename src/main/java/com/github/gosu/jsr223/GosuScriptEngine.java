@@ -15,7 +15,8 @@
  */
 package com.github.gosu.jsr223;
 
-import gw.lang.Gosu;
+import gw.lang.reflect.IType;
+import gw.lang.reflect.gs.IGosuProgram;
 
 import javax.script.AbstractScriptEngine;
 import javax.script.Bindings;
@@ -24,11 +25,21 @@ import javax.script.CompiledScript;
 import javax.script.Invocable;
 import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
-import javax.script.ScriptEngineFactory;
 import javax.script.ScriptException;
-import javax.script.SimpleBindings;
-import java.io.IOException;
+import javax.script.SimpleScriptContext;
+import java.io.File;
 import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * A partial implementation of a JSR 223 {@link ScriptEngine} for the Gosu language.
@@ -37,20 +48,54 @@ import java.io.Reader;
  */
 public class GosuScriptEngine extends AbstractScriptEngine implements Invocable, Compilable {
 
-  private boolean _initialized = false;
-  private GosuCompiledScript _compiledScript = null;
+  /**
+   * Context attribute that overrides the engine's {@link WriteBackMode} for evaluations in that context.
+   * The value may be a {@code WriteBackMode} or its name.
+   */
+  public static final String WRITE_BACK_MODE = "gosu.writeBackMode";
+
+  /**
+   * ENGINE_SCOPE key under which {@link WriteBackMode#LAZY} evaluations leave a view of their program
+   * vars.
+   */
+  public static final String PROGRAM_VARS = "gosu.programVars";
+
+  /**
+   * Context attribute bounding the wall-clock time of each evaluation in that context, in milliseconds.
+   * Overrides {@link #setTimeoutMillis}.
+   */
+  public static final String TIMEOUT_MILLIS = "gosu.timeoutMillis";
+
+  /**
+   * Context attribute bounding the CPU time of each evaluation in that context, in milliseconds.
+   * Overrides {@link #setCpuBudgetMillis}.
+   */
+  public static final String CPU_BUDGET_MILLIS = "gosu.cpuBudgetMillis";
+
+  /**
+   * The script most recently evaluated by {@link #eval}; the target of this engine's {@link Invocable}
+   * methods. Each eval works on its own {@link GosuCompiledScript} and only publishes it here, so
+   * concurrent evals never share program state. Callers that need a specific program regardless of
+   * what other threads evaluate should {@link #compile} it and use the result's {@link Invocable}
+   * methods directly.
+   */
+  private volatile GosuCompiledScript _compiledScript = null;
+  private volatile int _instancePoolSize = 0;
+  private volatile WriteBackMode _writeBackMode = WriteBackMode.EAGER;
+  private volatile boolean _redirectStandardStreams;
+  private volatile long _timeoutMillis = 0;
+  private volatile long _cpuBudgetMillis = 0;
+  private volatile Executor _asyncExecutor = ScriptExecutor.defaultAsyncExecutor();
   private final GosuScriptEngineFactory _factory;
 
   public GosuScriptEngine(GosuScriptEngineFactory factory) {
     super();
     _factory = factory;
+    context.setBindings(createBindings(), ScriptContext.ENGINE_SCOPE);
   }
 
-  private synchronized void init() {
-    if (!_initialized) {
-      Gosu.init();
-      _initialized = true;
-    }
+  private static void init() throws ScriptException {
+    GosuRuntime.init();
   }
 
 
@@ -62,71 +107,411 @@ public class GosuScriptEngine extends AbstractScriptEngine implements Invocable,
    *            source code
    * @return the return value of the script
    */
-  private Object parseAndExecute(String script, ScriptContext scriptContext) throws ScriptException {
+  private Object parseAndExecute(ScriptSource script, ScriptContext scriptContext) throws ScriptException {
     init();
-    _compiledScript = new GosuCompiledScript(script, scriptContext, this);
+    GosuCompiledScript compiledScript = compile(script, scriptContext, null);
+    _compiledScript = compiledScript;
+
+    return compiledScript.evalForInvocation(scriptContext);
+  }
+
+  /**
+   * Parses the script against the context's bindings, or reuses a program already parsed from the same
+   * text against bindings of the same types.
+   */
+  private GosuCompiledScript compile(ScriptSource script, ScriptContext scriptContext, Map<String, Class<?>> declaredClasses)
+      throws ScriptException {
+    Map<String, IType> declaredTypes = SymbolMarshaller.typesOf(declaredClasses);
+    ProgramCache cache = _factory.getProgramCache();
+    String scriptId = scriptIdOf(script, scriptContext, cache.isEnabled());
+    if (!cache.isEnabled()) {
+      return new GosuCompiledScript(script.text(), scriptContext, declaredTypes, this, scriptId);
+    }
+
+    ProgramKey key = ProgramKey.of(script, scriptContext, declaredClasses);
+    IGosuProgram program = cache.get(key);
+    if (program != null) {
+      return new GosuCompiledScript(program, scriptContext, declaredTypes, this, scriptId);
+    }
+
+    GosuCompiledScript compiledScript = new GosuCompiledScript(script.text(), scriptContext, declaredTypes, this, scriptId);
+    cache.put(key, compiledScript.getGosuProgram());
+    PersistentProgramCache persistentCache = _factory.getPersistentCache();
+    if (persistentCache != null) {
+      persistentCache.store(key, script.text());
+    }
+    return compiledScript;
+  }
+
+  /**
+   * @return the context's {@link #FILENAME}, or else the script's digest unless computing it just for this
+   * would be wasted
+   */
+  private String scriptIdOf(ScriptSource script, ScriptContext scriptContext, boolean digested) {
+    Object filename = scriptContext.getAttribute(FILENAME);
+    if (filename != null) return filename.toString();
+    return digested || _factory.getMetrics() != null || _factory.getProfiler() != null ? script.digest() : null;
+  }
+
+  /**
+   * @return how many idle program instances each script compiled by this engine keeps for reuse
+   */
+  public int getInstancePoolSize() {
+    return _instancePoolSize;
+  }
+
+  /**
+   * Sets how many idle program instances each subsequently compiled script keeps for reuse across
+   * {@link CompiledScript#eval} calls. Zero, the default, creates a fresh instance per evaluation.
+   * Pooled instances are only safe for scripts that initialize every program var they declare.
+   */
+  public void setInstancePoolSize(int instancePoolSize) {
+    if (instancePoolSize < 0) throw new IllegalArgumentException("instancePoolSize must not be negative: " + instancePoolSize);
+    _instancePoolSize = instancePoolSize;
+  }
+
+  public long getTimeoutMillis() {
+    return _timeoutMillis;
+  }
+
+  /**
+   * Bounds the wall-clock time of every evaluation, unless a context sets {@link #TIMEOUT_MILLIS}. An
+   * evaluation that runs too long fails with a {@link ScriptException} and its thread is interrupted.
+   * Only a script that checks for interruption or blocks interruptibly actually stops; any other runs on
+   * to its end on a worker thread, see {@link GosuScriptEngineFactory#getAbandonedEvaluations}. Limited
+   * evaluations run on a bounded set of workers and fail at once when all are busy. Zero, the default,
+   * means no limit and evaluations run on the caller's thread.
+   */
+  public void setTimeoutMillis(long timeoutMillis) {
+    _timeoutMillis = timeoutMillis;
+  }
+
+  public long getCpuBudgetMillis() {
+    return _cpuBudgetMillis;
+  }
+
+  /**
+   * Bounds the CPU time of every evaluation, unless a context sets {@link #CPU_BUDGET_MILLIS}. Works like
+   * {@link #setTimeoutMillis}, but only counts time the evaluating thread actually spends on a CPU.
+   */
+  public void setCpuBudgetMillis(long cpuBudgetMillis) {
+    _cpuBudgetMillis = cpuBudgetMillis;
+  }
+
+  /**
+   * @return the limits for evaluations in the context, or null if they are unbounded
+   */
+  ExecutionLimits getExecutionLimits(ScriptContext context) {
+    long timeoutMillis = longAttribute(context, TIMEOUT_MILLIS, _timeoutMillis);
+    long cpuBudgetMillis = longAttribute(context, CPU_BUDGET_MILLIS, _cpuBudgetMillis);
+    if (timeoutMillis <= 0 && cpuBudgetMillis <= 0) return null;
+    return new ExecutionLimits(timeoutMillis, cpuBudgetMillis);
+  }
+
+  private static long longAttribute(ScriptContext context, String name, long defaultValue) {
+    Object value = context == null ? null : context.getAttribute(name);
+    if (value == null) return defaultValue;
+    return value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString());
+  }
+
+  public Executor getAsyncExecutor() {
+    return _asyncExecutor;
+  }
+
+  /**
+   * Sets the executor that asynchronous evaluations and invocations run on, or null for the default:
+   * a virtual thread per task on JVMs that have virtual threads, a daemon thread per processor over an
+   * unbounded queue on older ones.
+   */
+  public void setAsyncExecutor(Executor asyncExecutor) {
+    _asyncExecutor = asyncExecutor == null ? ScriptExecutor.defaultAsyncExecutor() : asyncExecutor;
+  }
+
+  /**
+   * Starts evaluating a compiled script without blocking the caller; see
+   * {@link GosuCompiledScript#evalAsync}.
+   */
+  public CompletableFuture<Object> evalAsync(CompiledScript script, ScriptContext context) {
+    return ((GosuCompiledScript) script).evalAsync(context);
+  }
+
+  public CompletableFuture<Object> evalAsync(CompiledScript script, Bindings bindings) {
+    return evalAsync(script, getScriptContext(bindings));
+  }
+
+  /**
+   * Evaluates a compiled script once per set of bindings, all in parallel on the asynchronous executor.
+   * The program is shared; each evaluation gets an instance and a context of its own.
+   *
+   * @return a future per set of bindings, in iteration order
+   */
+  public List<CompletableFuture<Object>> evalAllAsync(CompiledScript script, Iterable<? extends Bindings> bindings) {
+    List<CompletableFuture<Object>> results = new ArrayList<CompletableFuture<Object>>();
+    for (Bindings b : bindings) {
+      results.add(evalAsync(script, b));
+    }
+    return results;
+  }
+
+  /**
+   * Invokes a function of the script most recently evaluated without blocking the caller; see
+   * {@link GosuCompiledScript#invokeFunctionAsync}.
+   */
+  public CompletableFuture<Object> invokeFunctionAsync(String name, Object... args) {
+    GosuCompiledScript compiledScript = _compiledScript;
+    if (compiledScript == null) {
+      CompletableFuture<Object> failed = new CompletableFuture<Object>();
+      failed.completeExceptionally(
+          new NoSuchMethodException("No script has been evaluated, so there is no method named " + name));
+      return failed;
+    }
+    return compiledScript.invokeFunctionAsync(name, args);
+  }
+
+  public boolean isRedirectStandardStreams() {
+    return _redirectStandardStreams;
+  }
+
+  /**
+   * Sets whether what a script prints, and reads from standard input, goes to the writers and reader of
+   * the {@link ScriptContext} it is evaluated in. Off by default, when scripts use the process's
+   * {@code System.out}, {@code System.err} and {@code System.in} directly. Turning it on replaces those
+   * three streams, process-wide and for good, with streams that route per thread, and costs every
+   * evaluation a few thread-local updates.
+   */
+  public void setRedirectStandardStreams(boolean redirectStandardStreams) {
+    _redirectStandardStreams = redirectStandardStreams;
+  }
+
+  public WriteBackMode getWriteBackMode() {
+    return _writeBackMode;
+  }
+
+  /**
+   * Sets how program vars are handed back after evaluations, unless a context overrides it through
+   * {@link #WRITE_BACK_MODE}.
+   */
+  public void setWriteBackMode(WriteBackMode writeBackMode) {
+    if (writeBackMode == null) throw new IllegalArgumentException("writeBackMode must not be null");
+    _writeBackMode = writeBackMode;
+  }
 
-    return _compiledScript.eval(scriptContext);
+  WriteBackMode getWriteBackMode(ScriptContext context) {
+    Object mode = context.getAttribute(WRITE_BACK_MODE);
+    if (mode == null) return _writeBackMode;
+    return mode instanceof WriteBackMode ? (WriteBackMode) mode : WriteBackMode.valueOf(mode.toString().toUpperCase());
   }
 
   @Override
   public Object eval(String script, ScriptContext context) throws ScriptException {
-    return parseAndExecute(script, context);
+    return parseAndExecute(ScriptSource.of(script), context);
   }
 
+  /**
+   * Reads the script into a reused buffer, hashing it on the way, so that a script whose program is
+   * already cached is never turned into a String.
+   */
   @Override
   public Object eval(Reader reader, ScriptContext context) throws ScriptException {
-    return eval(fromReader(reader), context);
+    return parseAndExecute(ScriptSource.read(reader), context);
   }
 
-  private static final String fromReader(Reader reader) throws ScriptException {
-    StringBuilder sb = new StringBuilder();
-    char[] cbuf = new char[1024];
-    try {
-      for (int numRead; (numRead = reader.read(cbuf)) > 0; sb.append(cbuf, 0, numRead)) ;
-    } catch (IOException e) {
-      throw new ScriptException(e);
-    }
-    return sb.toString();
+  /**
+   * Evaluates a UTF-8 script file; an unchanged file whose program is already cached is hashed but
+   * never decoded.
+   */
+  public Object eval(File file, ScriptContext context) throws ScriptException {
+    return parseAndExecute(ScriptSource.read(file, ScriptDigest.UTF8), context);
+  }
+
+  public Object eval(File file, Bindings bindings) throws ScriptException {
+    return eval(file, getScriptContext(bindings));
+  }
+
+  public Object eval(File file) throws ScriptException {
+    return eval(file, context);
   }
 
   @Override
   public Bindings createBindings() {
-    return new SimpleBindings();
+    return new GosuBindings();
   }
 
   @Override
-  public ScriptEngineFactory getFactory() {
+  public GosuScriptEngineFactory getFactory() {
     return _factory;
   }
 
   @Override
   public Object invokeMethod(Object thiz, String name, Object... args) throws ScriptException, NoSuchMethodException {
-    return _compiledScript.invokeMethod(thiz, name, args);
+    return publishedScript(name).invokeMethod(thiz, name, args);
   }
 
   @Override
   public Object invokeFunction(String name, Object... args) throws ScriptException, NoSuchMethodException {
-    return _compiledScript.invokeFunction(name, args);
+    return publishedScript(name).invokeFunction(name, args);
   }
 
   @Override
   public <T> T getInterface(Class<T> clasz) {
-    return _compiledScript.getInterface(clasz);
+    GosuCompiledScript compiledScript = _compiledScript;
+    return compiledScript == null ? null : compiledScript.getInterface(clasz);
   }
 
   @Override
   public <T> T getInterface(Object thiz, Class<T> clasz) {
-    return _compiledScript.getInterface(thiz, clasz);
+    GosuCompiledScript compiledScript = _compiledScript;
+    return compiledScript == null ? null : compiledScript.getInterface(thiz, clasz);
+  }
+
+  /**
+   * Resolves a typed handle on a function of the script most recently evaluated; see
+   * {@link GosuCompiledScript#getFunction}.
+   */
+  public ScriptFunction getFunction(String name, Class<?> returnType, Class<?>... parameterTypes)
+      throws NoSuchMethodException {
+    return publishedScript(name).getFunction(name, returnType, parameterTypes);
+  }
+
+  private GosuCompiledScript publishedScript(String name) throws NoSuchMethodException {
+    GosuCompiledScript compiledScript = _compiledScript;
+    if (compiledScript == null) {
+      throw new NoSuchMethodException("No script has been evaluated, so there is no method named " + name);
+    }
+    return compiledScript;
   }
 
   @Override
   public CompiledScript compile(String script) throws ScriptException {
-    return new GosuCompiledScript(script, getScriptContext(createBindings()), this);
+    init();
+    return compile(ScriptSource.of(script), getScriptContext(createBindings()), null);
+  }
+
+  /**
+   * Compiles a batch of scripts in parallel on a pool with one thread per processor. See
+   * {@link #compileAll(Map, ExecutorService)}.
+   */
+  public Map<String, CompileResult> compileAll(Map<String, Reader> scripts) throws ScriptException {
+    ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    try {
+      return compileAll(scripts, executor);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Compiles a batch of scripts in parallel on the given executor. The readers are drained on the
+   * calling thread; identical sources are compiled only once and share one result. A script that fails
+   * to read or parse only fails its own result.
+   * <p>
+   * Every script is parsed by a parser of its own, so the only contention between tasks is inside the
+   * Gosu type system itself.
+   *
+   * @param scripts readers keyed by any name the caller likes, e.g. a file name
+   * @return one result per name, in the iteration order of {@code scripts}
+   */
+  public Map<String, CompileResult> compileAll(Map<String, Reader> scripts, ExecutorService executor)
+      throws ScriptException {
+    init();
+    final ScriptContext compileContext = getScriptContext(createBindings());
+
+    Map<String, CompileResult> results = new LinkedHashMap<String, CompileResult>();
+    Map<String, Future<CompileResult>> pending = new LinkedHashMap<String, Future<CompileResult>>();
+    Map<String, Future<CompileResult>> bySource = new HashMap<String, Future<CompileResult>>();
+    for (Map.Entry<String, Reader> e : scripts.entrySet()) {
+      final ScriptSource source;
+      try {
+        source = ScriptSource.read(e.getValue());
+      } catch (ScriptException se) {
+        results.put(e.getKey(), new CompileResult(null, se));
+        continue;
+      }
+      // keep the result slot in the caller's order
+      results.put(e.getKey(), null);
+
+      Future<CompileResult> future = bySource.get(source.digest());
+      if (future == null) {
+        // the read buffer is reused by the next iteration, so pin the text now
+        final ScriptSource script = ScriptSource.of(source.text(), source.digest());
+        future = executor.submit(new Callable<CompileResult>() {
+          @Override
+          public CompileResult call() {
+            try {
+              return new CompileResult(compile(script, compileContext, null), null);
+            } catch (ScriptException se) {
+              return new CompileResult(null, se);
+            } catch (RuntimeException re) {
+              return new CompileResult(null, new ScriptException(re));
+            }
+          }
+        });
+        bySource.put(source.digest(), future);
+      }
+      pending.put(e.getKey(), future);
+    }
+
+    for (Map.Entry<String, Future<CompileResult>> e : pending.entrySet()) {
+      results.put(e.getKey(), GosuRuntime.await(e.getValue()));
+    }
+    return results;
+  }
+
+  /**
+   * Compiles a script against declared binding types instead of the classes of whatever values happen
+   * to be bound. The result can be evaluated with any bindings whose values are instances of the
+   * declared types, including subclasses and null, and declared names that are not bound at all read
+   * as null.
+   *
+   * @param bindingTypes the Java (or Gosu backing) class of each binding the script expects
+   */
+  public GosuCompiledScript compile(String script, Map<String, Class<?>> bindingTypes) throws ScriptException {
+    if (bindingTypes == null) throw new IllegalArgumentException("bindingTypes must not be null");
+    init();
+    return compile(ScriptSource.of(script), getScriptContext(createBindings()), bindingTypes);
+  }
+
+  /**
+   * Compiles a pure expression, such as {@code order.Total > 100}, for the fast evaluation path of
+   * {@link GosuExpression}. The expression sees only its declared bindings.
+   *
+   * @param bindingTypes the class of each binding the expression uses; the iteration order is the order
+   *                     {@link GosuExpression#evalWith} takes values in
+   * @throws ScriptException if the script does not parse, or declares vars
+   */
+  public GosuExpression compileExpression(String expression, Map<String, Class<?>> bindingTypes) throws ScriptException {
+    if (bindingTypes == null) throw new IllegalArgumentException("bindingTypes must not be null");
+    init();
+    // no global scope: the expression must not come to depend on bindings it will not be given
+    ScriptContext expressionContext = new SimpleScriptContext();
+    expressionContext.setBindings(createBindings(), ScriptContext.ENGINE_SCOPE);
+    GosuCompiledScript script = compile(ScriptSource.of(expression), expressionContext, bindingTypes);
+    return new GosuExpression(script, SymbolMarshaller.typesOf(bindingTypes));
   }
 
   @Override
   public CompiledScript compile(Reader script) throws ScriptException {
-    return new GosuCompiledScript(fromReader(script), getScriptContext(createBindings()), this);
+    init();
+    return compile(ScriptSource.read(script), getScriptContext(createBindings()), null);
+  }
+
+  /**
+   * Compiles a UTF-8 script file; see {@link #eval(File, ScriptContext)}.
+   */
+  public GosuCompiledScript compile(File file) throws ScriptException {
+    return compile(ScriptSource.read(file, ScriptDigest.UTF8), file.getPath(), null);
+  }
+
+  /**
+   * Compiles a source that was read elsewhere, under {@code filename} as its {@link #FILENAME}.
+   *
+   * @param bindingTypes declared binding types as for {@link #compile(String, Map)}, or null
+   */
+  GosuCompiledScript compile(ScriptSource source, String filename, Map<String, Class<?>> bindingTypes)
+      throws ScriptException {
+    init();
+    ScriptContext compileContext = getScriptContext(createBindings());
+    compileContext.setAttribute(FILENAME, filename, ScriptContext.ENGINE_SCOPE);
+    return compile(source, compileContext, bindingTypes);
   }
 }
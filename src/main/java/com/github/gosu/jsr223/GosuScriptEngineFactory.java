@@ -15,10 +15,22 @@
  */
 package com.github.gosu.jsr223;
 
+import gw.lang.reflect.TypeSystem;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineFactory;
+import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * A mostly-complete JSR 223 implementation of {@link ScriptEngineFactory} for the Gosu language. See the
@@ -32,6 +44,13 @@ public class GosuScriptEngineFactory implements ScriptEngineFactory {
 
     public static final String ENGINE_NAME = "Gosu";
 
+    /**
+     * Key of the JSR 223 threading parameter. Gosu engines are safe to share between threads; see
+     * {@link GosuScriptEngine} for how {@link javax.script.Invocable} calls pick their program.
+     */
+    public static final String THREADING = "THREADING";
+    public static final String MULTITHREADED = "MULTITHREADED";
+
     // This was the gosu version that I developed on
     //updated to use open source gosu from gosu-lang.org @version 0.10.2 by jeffklein
     //TODO: jeffklein (9/19/201300): can we get this from maven? perhaps via resource filtering a properties file?
@@ -57,6 +76,302 @@ public class GosuScriptEngineFactory implements ScriptEngineFactory {
         ENGINE_NAMES.add(ENGINE_NAME.toLowerCase());
     }
 
+    /**
+     * System property that, when "true", makes every factory start {@link #warmUp() warming up} Gosu as
+     * soon as it is created, which for a {@link javax.script.ScriptEngineManager} means at service-loader
+     * time.
+     */
+    public static final String WARM_UP_PROPERTY = "gosu.jsr223.warmUp";
+
+    /**
+     * System property holding a comma-separated list of fully qualified type names to load while
+     * warming up because of {@link #WARM_UP_PROPERTY}.
+     */
+    public static final String WARM_UP_TYPES_PROPERTY = "gosu.jsr223.warmUpTypes";
+
+    /**
+     * System property capping the worker threads that evaluations with a timeout or CPU budget run on,
+     * process-wide. Defaults to four per processor, and at least 16.
+     */
+    public static final String MAX_WORKERS_PROPERTY = "gosu.jsr223.maxWorkers";
+
+    private final ProgramCache _programCache = new ProgramCache(ProgramCache.DEFAULT_MAX_SIZE);
+    private final ProgramClassTracker _programClasses = new ProgramClassTracker();
+    private final ParserPool _parserPool = new ParserPool(ParserPool.DEFAULT_MAX_IDLE);
+
+    private volatile PersistentProgramCache _persistentCache;
+    private volatile ScriptMetrics _metrics;
+    private volatile ScriptProfiler _profiler;
+    private ObjectName _metricsName;
+    private final Future<Void> _startupWarmUp;
+
+    public GosuScriptEngineFactory() {
+        if (Boolean.getBoolean(WARM_UP_PROPERTY)) {
+            String types = System.getProperty(WARM_UP_TYPES_PROPERTY, "").trim();
+            _startupWarmUp = warmUp(types.length() == 0 ? Collections.<String>emptyList()
+                                                        : Arrays.asList(types.split("\\s*,\\s*")),
+                                    Collections.<String>emptyList());
+        } else {
+            _startupWarmUp = null;
+        }
+    }
+
+    /**
+     * @return the warm-up this factory started on creation because of {@link #WARM_UP_PROPERTY}, or null
+     */
+    public Future<Void> getStartupWarmUp() {
+        return _startupWarmUp;
+    }
+
+    /**
+     * Starts initializing the Gosu type system on a background thread, so that the first
+     * {@link ScriptEngine#eval} does not pay for it.
+     *
+     * @return completes when Gosu is ready
+     */
+    public Future<Void> warmUp() {
+        return GosuRuntime.initInBackground();
+    }
+
+    /**
+     * Like {@link #warmUp()}, then also loads the named types and compiles the given scripts into this
+     * factory's {@link #getProgramCache() program cache}, still in the background. A type or script that
+     * fails to load fails the returned future, but not the ones after it.
+     *
+     * @param typeNames fully qualified Gosu or Java type names
+     * @param scripts   script sources that will later be evaluated with no bindings
+     * @return completes when everything has been loaded
+     */
+    public Future<Void> warmUp(final Collection<String> typeNames, final Collection<String> scripts) {
+        final Future<Void> init = warmUp();
+        FutureTask<Void> preload = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                GosuRuntime.await(init);
+                Exception failure = null;
+                for (String typeName : typeNames) {
+                    try {
+                        if (TypeSystem.getByFullName(typeName) == null) {
+                            throw new ClassNotFoundException(typeName);
+                        }
+                    } catch (Exception e) {
+                        failure = failure == null ? e : failure;
+                    }
+                }
+                GosuScriptEngine engine = (GosuScriptEngine) getScriptEngine();
+                for (String script : scripts) {
+                    try {
+                        engine.compile(script);
+                    } catch (Exception e) {
+                        failure = failure == null ? e : failure;
+                    }
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                return null;
+            }
+        });
+        GosuRuntime.startDaemon("Gosu warm-up", preload);
+        return preload;
+    }
+
+    /**
+     * Keeps a record of every script this factory's engines parse in {@code directory}, so that a later
+     * JVM can {@link #restorePersistentCache() restore} them. Entries are kept per engine and Gosu version,
+     * written in the background, and capped at 1024 per version.
+     *
+     * @param directory the cache root, or null to stop persisting
+     */
+    public void setPersistentCacheDirectory(File directory) {
+        setPersistentCacheDirectory(directory, PersistentProgramCache.DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Like {@link #setPersistentCacheDirectory(File)}, keeping at most {@code maxEntries} scripts; the
+     * least recently recorded ones are deleted first.
+     */
+    public void setPersistentCacheDirectory(File directory, int maxEntries) {
+        _persistentCache = directory == null ? null
+                : new PersistentProgramCache(directory, getEngineVersion(), getLanguageVersion(), maxEntries);
+    }
+
+    public File getPersistentCacheDirectory() {
+        PersistentProgramCache persistentCache = _persistentCache;
+        return persistentCache == null ? null : persistentCache.getDirectory();
+    }
+
+    PersistentProgramCache getPersistentCache() {
+        return _persistentCache;
+    }
+
+    /**
+     * Re-parses, on a background thread, every script recorded in the persistent cache directory into the
+     * {@link #getProgramCache() program cache}, so that evaluations of unchanged scripts after a restart
+     * skip the parser. Entries this JVM is still writing are waited for. Starts warming up Gosu too.
+     *
+     * @return the number of scripts restored
+     */
+    public Future<Integer> restorePersistentCache() {
+        final PersistentProgramCache persistentCache = _persistentCache;
+        if (persistentCache == null) {
+            throw new IllegalStateException("No persistent cache directory has been set");
+        }
+        final Future<Void> init = warmUp();
+        FutureTask<Integer> restore = new FutureTask<Integer>(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                GosuRuntime.await(init);
+                PersistentProgramCache.awaitWrites();
+                GosuScriptEngine engine = (GosuScriptEngine) getScriptEngine();
+                int restored = 0;
+                for (PersistentProgramCache.Entry entry : persistentCache.load()) {
+                    try {
+                        engine.compile(entry._script, entry._types);
+                        restored++;
+                    } catch (Exception e) {
+                        // the script or its types changed incompatibly; it will be parsed on demand
+                    }
+                }
+                return restored;
+            }
+        });
+        GosuRuntime.startDaemon("Gosu cache restore", restore);
+        return restore;
+    }
+
+    /**
+     * Installs metrics that every engine of this factory reports its timings to, or null to stop timing.
+     * Without metrics, the default, operations are not timed at all.
+     */
+    public void setMetrics(ScriptMetrics metrics) {
+        _metrics = metrics;
+    }
+
+    public ScriptMetrics getMetrics() {
+        return _metrics;
+    }
+
+    /**
+     * Starts recording metrics with a {@link MetricsRecorder} and publishes them as a
+     * {@link GosuEngineMetricsMBean} on the platform MBean server, under
+     * {@code com.github.gosu.jsr223:type=GosuEngineMetrics,name=<factory hash>}.
+     *
+     * @return the recorder, to read the metrics without JMX
+     */
+    public synchronized MetricsRecorder enableMetrics() {
+        disableMetrics();
+        MetricsRecorder recorder = new MetricsRecorder();
+        try {
+            ObjectName name = new ObjectName("com.github.gosu.jsr223:type=GosuEngineMetrics,name="
+                    + Integer.toHexString(System.identityHashCode(this)));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new GosuEngineMetrics(this, recorder), name);
+            _metricsName = name;
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register the metrics MBean", e);
+        }
+        _metrics = recorder;
+        return recorder;
+    }
+
+    /**
+     * Stops recording metrics and unregisters the MBean registered by {@link #enableMetrics()}.
+     */
+    public synchronized void disableMetrics() {
+        _metrics = null;
+        if (_metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(_metricsName);
+            } catch (JMException e) {
+                // already gone
+            }
+            _metricsName = null;
+        }
+    }
+
+    /**
+     * Installs a profiler that measures the CPU time and allocation of every evaluation and invocation of
+     * this factory's engines, or null, the default, to stop profiling.
+     */
+    public synchronized void setProfiler(ScriptProfiler profiler) {
+        ScriptProfiler previous = _profiler;
+        if (profiler == previous) return;
+        if (profiler != null) {
+            ScriptProfiler.installed();
+        }
+        _profiler = profiler;
+        if (previous != null) {
+            ScriptProfiler.removed();
+        }
+    }
+
+    public ScriptProfiler getProfiler() {
+        return _profiler;
+    }
+
+    /**
+     * @return evaluations, of any factory, that were stopped by their timeout or CPU budget but whose
+     *         scripts never checked for interruption and are still running on a worker thread
+     */
+    public int getAbandonedEvaluations() {
+        return ScriptExecutor.getAbandoned();
+    }
+
+    /**
+     * @return whether Gosu has finished initializing
+     */
+    public boolean isReady() {
+        return GosuRuntime.isInitialized();
+    }
+
+    /**
+     * @return the cache of parsed programs shared by every engine this factory creates
+     */
+    public ProgramCache getProgramCache() {
+        return _programCache;
+    }
+
+    /**
+     * @return the pool of parsers shared by every engine this factory creates
+     */
+    public ParserPool getParserPool() {
+        return _parserPool;
+    }
+
+    ProgramClassTracker getProgramClassTracker() {
+        return _programClasses;
+    }
+
+    /**
+     * @return how many program classes this factory's engines have generated
+     */
+    public long getProgramClassesCreated() {
+        return _programClasses.getCreated();
+    }
+
+    /**
+     * The engine only references a program from its {@link #getProgramCache() cache}, the compiled
+     * scripts handed out and the script an engine evaluated last. Where
+     * {@link #isUnloadingProgramClasses()} holds, each program's class is unloaded once none of them
+     * references it any more, so this settles near the cache size plus whatever callers still hold.
+     * Otherwise it keeps growing with every distinct script; bound their number then, e.g. by
+     * {@link GosuScriptEngine#compile(String, java.util.Map) declaring} bindings rather than splicing
+     * values into script text.
+     *
+     * @return how many generated program classes have not been unloaded yet
+     */
+    public int getLiveProgramClasses() {
+        return _programClasses.getLive();
+    }
+
+    /**
+     * @return whether the Gosu in use lets program classes be unloaded, by defining each program in a
+     *         class loader of its own
+     */
+    public boolean isUnloadingProgramClasses() {
+        return ProgramClassTracker.isUnloadingSupported();
+    }
+
     @Override
     public String getEngineName() {
         return "Gosu";
@@ -94,7 +409,13 @@ public class GosuScriptEngineFactory implements ScriptEngineFactory {
 
     @Override
     public Object getParameter(String key) {
-        return getScriptEngine().get(key).toString();
+        if (ScriptEngine.ENGINE.equals(key)) return getEngineName();
+        if (ScriptEngine.ENGINE_VERSION.equals(key)) return getEngineVersion();
+        if (ScriptEngine.NAME.equals(key)) return ENGINE_NAME.toLowerCase();
+        if (ScriptEngine.LANGUAGE.equals(key)) return getLanguageName();
+        if (ScriptEngine.LANGUAGE_VERSION.equals(key)) return getLanguageVersion();
+        if (THREADING.equals(key)) return MULTITHREADED;
+        return null;
     }
 
     @Override
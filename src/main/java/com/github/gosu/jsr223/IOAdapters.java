@@ -5,32 +5,177 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 
 /**
  * Created with IntelliJ IDEA.
  * User: rberlin
  * Date: 10/11/13
  * Time: 5:59 PM
- * To change this template use File | Settings | File Templates.
+ * <p>
+ * Byte stream views of the character streams in a {@link javax.script.ScriptContext}. Both adapters
+ * transcode in bulk through fixed buffers; single-byte calls only touch the buffers.
  */
 class IOAdapters {
+  private static final int BUFFER_SIZE = 1024;
+
   public static OutputStream adaptOutput(final Writer writer) {
-    return new OutputStream() {
+    return adaptOutput(writer, Charset.defaultCharset());
+  }
 
-      @Override
-      public void write(int b) throws IOException {
-        writer.write(b);
-      }
-    };
+  public static OutputStream adaptOutput(Writer writer, Charset charset) {
+    return new WriterOutputStream(writer, charset);
   }
 
   public static InputStream adaptInput(final Reader reader) {
-    return new InputStream() {
+    return adaptInput(reader, Charset.defaultCharset());
+  }
+
+  public static InputStream adaptInput(Reader reader, Charset charset) {
+    return new ReaderInputStream(reader, charset);
+  }
+
+  private static final class WriterOutputStream extends OutputStream {
+    private final Writer _writer;
+    private final CharsetDecoder _decoder;
+    private final ByteBuffer _bytes = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CharBuffer _chars = CharBuffer.allocate(BUFFER_SIZE);
+
+    WriterOutputStream(Writer writer, Charset charset) {
+      _writer = writer;
+      _decoder = charset.newDecoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (!_bytes.hasRemaining()) {
+        decode(false);
+      }
+      _bytes.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (!_bytes.hasRemaining()) {
+          decode(false);
+        }
+        int n = Math.min(len, _bytes.remaining());
+        _bytes.put(b, off, n);
+        off += n;
+        len -= n;
+      }
+    }
+
+    /**
+     * Decodes everything buffered so far; an incomplete multi-byte sequence stays buffered.
+     */
+    private void decode(boolean endOfInput) throws IOException {
+      _bytes.flip();
+      while (_decoder.decode(_bytes, _chars, endOfInput).isOverflow()) {
+        drain();
+      }
+      if (endOfInput) {
+        while (_decoder.flush(_chars).isOverflow()) {
+          drain();
+        }
+        _decoder.reset();
+      }
+      drain();
+      _bytes.compact();
+    }
+
+    private void drain() throws IOException {
+      _chars.flip();
+      _writer.write(_chars.array(), _chars.arrayOffset() + _chars.position(), _chars.remaining());
+      _chars.clear();
+    }
+
+    @Override
+    public void flush() throws IOException {
+      decode(false);
+      _writer.flush();
+    }
+
+    /**
+     * Writes out anything still buffered. The writer itself belongs to the caller and stays open.
+     */
+    @Override
+    public void close() throws IOException {
+      decode(true);
+      _writer.flush();
+    }
+  }
+
+  private static final class ReaderInputStream extends InputStream {
+    private final Reader _reader;
+    private final CharsetEncoder _encoder;
+    private final CharBuffer _chars = (CharBuffer) CharBuffer.allocate(BUFFER_SIZE).flip();
+    private final ByteBuffer _bytes = (ByteBuffer) ByteBuffer.allocate(BUFFER_SIZE).flip();
+    private boolean _eof;
+    private boolean _done;
+
+    ReaderInputStream(Reader reader, Charset charset) {
+      _reader = reader;
+      _encoder = charset.newEncoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!_bytes.hasRemaining() && !fill()) return -1;
+      return _bytes.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) return 0;
+      if (!_bytes.hasRemaining() && !fill()) return -1;
+      int n = Math.min(len, _bytes.remaining());
+      _bytes.get(b, off, n);
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return _bytes.remaining();
+    }
+
+    /**
+     * Encodes at least one more byte into the buffer, reading more characters as needed.
+     *
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+      if (_done) return false;
 
-      @Override
-      public int read() throws IOException {
-        return reader.read();
+      _bytes.clear();
+      while (_bytes.position() == 0) {
+        if (!_eof) {
+          _chars.compact();
+          if (_reader.read(_chars) < 0) {
+            _eof = true;
+          }
+          _chars.flip();
+        }
+        CoderResult result = _encoder.encode(_chars, _bytes, _eof);
+        if (_eof && result.isUnderflow()) {
+          _encoder.flush(_bytes);
+          _done = true;
+          break;
+        }
       }
-    };
+      _bytes.flip();
+      return _bytes.hasRemaining();
+    }
   }
 }
@@ -0,0 +1,183 @@
+package com.github.gosu.jsr223;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Implements a Java interface on top of a script object for {@link javax.script.Invocable#getInterface}.
+ * Every interface method is resolved to its script target once, when the implementation is created,
+ * and bound into a method handle; calls through the interface then go straight to that handle without
+ * any lookup. Default methods the script does not implement run the interface's own default.
+ */
+final class InterfaceBinder {
+  private static final Object[] NO_ARGS = new Object[0];
+
+  // InvocationHandler.invokeDefault, on Java 16 and later
+  private static final Method INVOKE_DEFAULT = findMethod(InvocationHandler.class, "invokeDefault",
+      Object.class, Method.class, Object[].class);
+  // MethodHandles.privateLookupIn, on Java 9 and later
+  private static final Method PRIVATE_LOOKUP_IN = findMethod(MethodHandles.class, "privateLookupIn",
+      Class.class, MethodHandles.Lookup.class);
+
+  private InterfaceBinder() {
+  }
+
+  /**
+   * @param target       the object whose methods implement the interface
+   * @param leadingArgs  arguments passed ahead of the interface method's own, e.g. the symbol map every
+   *                     program function takes first
+   * @return an implementation of {@code iface}, or null if {@code target} has no method matching some
+   *         abstract method of the interface
+   */
+  static <T> T bind(Class<T> iface, Object target, Object... leadingArgs) {
+    if (iface == null || !iface.isInterface()) {
+      throw new IllegalArgumentException(iface + " is not an interface");
+    }
+
+    Map<Method, MethodHandle> handles = new HashMap<Method, MethodHandle>();
+    for (Method m : iface.getMethods()) {
+      if (Modifier.isStatic(m.getModifiers()) || isObjectMethod(m)) continue;
+
+      MethodHandle handle = bindMethod(m, target, leadingArgs);
+      if (handle != null) {
+        handles.put(m, handle);
+      } else if (Modifier.isAbstract(m.getModifiers())) {
+        return null;
+      }
+    }
+
+    return iface.cast(Proxy.newProxyInstance(iface.getClassLoader(),
+        new Class[] {iface},
+        new BoundHandler(target, handles)));
+  }
+
+  private static MethodHandle bindMethod(Method m, Object target, Object[] leadingArgs) {
+    Class<?>[] params = m.getParameterTypes();
+    Class<?>[] argTypes = new Class<?>[leadingArgs.length + params.length];
+    for (int i = 0; i < leadingArgs.length; i++) {
+      argTypes[i] = leadingArgs[i].getClass();
+    }
+    System.arraycopy(params, 0, argTypes, leadingArgs.length, params.length);
+
+    Method scriptMethod;
+    try {
+      scriptMethod = MethodDispatcher.resolve(target.getClass(), m.getName(), argTypes);
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+    if (m.getReturnType() != void.class &&
+        !MethodDispatcher.box(m.getReturnType()).isAssignableFrom(MethodDispatcher.box(scriptMethod.getReturnType()))) {
+      return null;
+    }
+
+    MethodHandle handle = MethodDispatcher.boundHandle(scriptMethod, target, leadingArgs);
+    return handle.asType(MethodType.genericMethodType(params.length)).asSpreader(Object[].class, params.length);
+  }
+
+  /**
+   * Runs the default implementation of {@code method} on {@code proxy}, using whichever of
+   * {@code InvocationHandler.invokeDefault} (Java 16+), {@code privateLookupIn} (Java 9+) or a private
+   * lookup (Java 8) the running JVM offers. On Java 9 to 15 {@code privateLookupIn} refuses interfaces
+   * in JDK modules that are not open, such as {@link java.util.Comparator}; those are special-invoked
+   * through this class's own lookup instead, which may call the defaults of any interface it can see.
+   */
+  static Object invokeDefault(Object proxy, Method method, Object[] args) throws Throwable {
+    if (INVOKE_DEFAULT != null) {
+      try {
+        return INVOKE_DEFAULT.invoke(null, proxy, method, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+    }
+
+    MethodHandle handle;
+    try {
+      handle = defaultHandle(method);
+    } catch (InvocationTargetException e) {
+      throw new UnsupportedOperationException("Cannot call default method " + method + " on a script", e.getCause());
+    } catch (ReflectiveOperationException e) {
+      throw new UnsupportedOperationException("Cannot call default method " + method + " on a script", e);
+    }
+    return handle.bindTo(proxy).invokeWithArguments(args == null ? NO_ARGS : args);
+  }
+
+  private static MethodHandle defaultHandle(Method method) throws ReflectiveOperationException {
+    Class<?> iface = method.getDeclaringClass();
+    if (PRIVATE_LOOKUP_IN == null) {
+      Constructor<MethodHandles.Lookup> constructor =
+          MethodHandles.Lookup.class.getDeclaredConstructor(Class.class, int.class);
+      constructor.setAccessible(true);
+      return constructor.newInstance(iface, MethodHandles.Lookup.PRIVATE).unreflectSpecial(method, iface);
+    }
+
+    try {
+      MethodHandles.Lookup lookup = (MethodHandles.Lookup) PRIVATE_LOOKUP_IN.invoke(null, iface, MethodHandles.lookup());
+      return lookup.unreflectSpecial(method, iface);
+    } catch (InvocationTargetException e) {
+      if (!(e.getCause() instanceof IllegalAccessException)) throw e;
+    } catch (IllegalAccessException e) {
+      // fall through
+    }
+    return MethodHandles.lookup().findSpecial(iface, method.getName(),
+        MethodType.methodType(method.getReturnType(), method.getParameterTypes()), iface);
+  }
+
+  private static Method findMethod(Class<?> type, String name, Class<?>... params) {
+    try {
+      return type.getMethod(name, params);
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  private static boolean isObjectMethod(Method m) {
+    try {
+      Object.class.getMethod(m.getName(), m.getParameterTypes());
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  private static final class BoundHandler implements InvocationHandler {
+    private final Object _target;
+    private final Map<Method, MethodHandle> _handles;
+
+    BoundHandler(Object target, Map<Method, MethodHandle> handles) {
+      _target = target;
+      _handles = handles;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      MethodHandle handle = _handles.get(method);
+      if (handle != null) {
+        return (Object) handle.invokeExact(args == null ? NO_ARGS : args);
+      }
+
+      String name = method.getName();
+      if (name.equals("equals") && args != null && args.length == 1) {
+        return proxy == args[0];
+      }
+      if (name.equals("hashCode") && args == null) {
+        return System.identityHashCode(proxy);
+      }
+      if (name.equals("toString") && args == null) {
+        return method.getDeclaringClass().getName() + "[" + _target + "]";
+      }
+      if (method.isDefault()) {
+        return invokeDefault(proxy, method, args);
+      }
+      throw new UnsupportedOperationException("Script does not implement " + method);
+    }
+  }
+}
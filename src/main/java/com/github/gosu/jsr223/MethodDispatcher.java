@@ -0,0 +1,274 @@
+package com.github.gosu.jsr223;
+
+import javax.script.ScriptException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Resolves script functions and methods by name and argument types, and calls them through method
+ * handles. Resolution picks the most specific applicable overload, treating a null argument as
+ * compatible with any reference parameter and a boxed argument as compatible with its primitive, or with
+ * any primitive it widens to, as {@link Method#invoke} does. The resulting handle is cached per class,
+ * keyed by name and argument classes, so a hot call site pays for the lookup once.
+ */
+final class MethodDispatcher {
+  private static final Object[] NO_ARGS = new Object[0];
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+  // Held per class through a ClassValue rather than a static map: the cached handles do reference the
+  // class they were resolved on, but only from that class's own slot, so they add no GC root of their own
+  // and live exactly as long as the class.
+  private static final ClassValue<ConcurrentMap<Signature, MethodHandle>> HANDLES =
+      new ClassValue<ConcurrentMap<Signature, MethodHandle>>() {
+        @Override
+        protected ConcurrentMap<Signature, MethodHandle> computeValue(Class<?> type) {
+          return new ConcurrentHashMap<Signature, MethodHandle>();
+        }
+      };
+
+  private static final Map<Class<?>, Class<?>> BOXES = new HashMap<Class<?>, Class<?>>();
+  // the primitive widening conversions, by the primitive widened
+  private static final Map<Class<?>, Set<Class<?>>> WIDENINGS = new HashMap<Class<?>, Set<Class<?>>>();
+  static {
+    BOXES.put(boolean.class, Boolean.class);
+    BOXES.put(byte.class, Byte.class);
+    BOXES.put(char.class, Character.class);
+    BOXES.put(short.class, Short.class);
+    BOXES.put(int.class, Integer.class);
+    BOXES.put(long.class, Long.class);
+    BOXES.put(float.class, Float.class);
+    BOXES.put(double.class, Double.class);
+    BOXES.put(void.class, Void.class);
+
+    WIDENINGS.put(byte.class, primitives(short.class, int.class, long.class, float.class, double.class));
+    WIDENINGS.put(short.class, primitives(int.class, long.class, float.class, double.class));
+    WIDENINGS.put(char.class, primitives(int.class, long.class, float.class, double.class));
+    WIDENINGS.put(int.class, primitives(long.class, float.class, double.class));
+    WIDENINGS.put(long.class, primitives(float.class, double.class));
+    WIDENINGS.put(float.class, primitives(double.class));
+  }
+
+  private static Set<Class<?>> primitives(Class<?>... types) {
+    return new HashSet<Class<?>>(Arrays.asList(types));
+  }
+
+  private MethodDispatcher() {
+  }
+
+  /**
+   * Calls the best match for {@code name} on {@code target} with {@code args}.
+   */
+  static Object invoke(Object target, String name, Object[] args) throws ScriptException, NoSuchMethodException {
+    if (args == null) {
+      args = NO_ARGS;
+    }
+    MethodHandle handle = handleFor(target.getClass(), name, classesOf(args));
+    try {
+      return (Object) handle.invokeExact(target, args);
+    } catch (Error e) {
+      throw e;
+    } catch (Throwable t) {
+      throw scriptException(t);
+    }
+  }
+
+  /**
+   * @return a handle of type {@code (Object, Object[])Object} calling the best match for {@code name} on
+   *         instances of {@code target} with arguments of the given types; a null entry stands for a
+   *         null argument
+   */
+  static MethodHandle handleFor(Class<?> target, String name, Class<?>[] argTypes) throws NoSuchMethodException {
+    ConcurrentMap<Signature, MethodHandle> handles = HANDLES.get(target);
+    Signature signature = new Signature(name, argTypes);
+    MethodHandle handle = handles.get(signature);
+    if (handle == null) {
+      handle = spreadHandle(resolve(target, name, argTypes));
+      MethodHandle raced = handles.putIfAbsent(signature, handle);
+      if (raced != null) {
+        handle = raced;
+      }
+    }
+    return handle;
+  }
+
+  /**
+   * @return a handle with the method's own, unadapted type, receiver first for instance methods
+   */
+  static MethodHandle directHandle(Method method) {
+    try {
+      method.setAccessible(true);
+    } catch (RuntimeException e) {
+      // InaccessibleObjectException on Java 9+, for a class of a module not open to us: the method can
+      // still be called if it is public, in an exported package
+    }
+    try {
+      return LOOKUP.unreflect(method);
+    } catch (IllegalAccessException e) {
+      return reflectiveHandle(method);
+    }
+  }
+
+  /**
+   * @return a handle calling the method through {@link Method#invoke}, which then throws the
+   *         {@link IllegalAccessException} for a method we may not call, and rethrows whatever the method
+   *         itself throws
+   */
+  private static MethodHandle reflectiveHandle(Method method) {
+    try {
+      MethodHandle invoke = LOOKUP.findVirtual(Method.class, "invoke",
+          MethodType.methodType(Object.class, Object.class, Object[].class)).bindTo(method);
+      invoke = MethodHandles.catchException(invoke, InvocationTargetException.class,
+          LOOKUP.findStatic(MethodDispatcher.class, "rethrowCause",
+              MethodType.methodType(Object.class, InvocationTargetException.class)));
+      if (Modifier.isStatic(method.getModifiers())) {
+        invoke = MethodHandles.insertArguments(invoke, 0, (Object) null);
+      }
+      MethodType type = MethodType.methodType(method.getReturnType(), method.getParameterTypes());
+      if (!Modifier.isStatic(method.getModifiers())) {
+        type = type.insertParameterTypes(0, method.getDeclaringClass());
+      }
+      int numParams = method.getParameterTypes().length;
+      return invoke.asCollector(Object[].class, numParams).asType(type);
+    } catch (ReflectiveOperationException e) {
+      // Method.invoke and rethrowCause are there to be found
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static Object rethrowCause(InvocationTargetException e) throws Throwable {
+    throw e.getCause();
+  }
+
+  /**
+   * @return a handle calling the method on {@code target}, or statically, with {@code leadingArgs} passed
+   *         ahead of the remaining arguments, in the method's own types
+   */
+  static MethodHandle boundHandle(Method method, Object target, Object[] leadingArgs) {
+    MethodHandle handle = directHandle(method);
+    if (!Modifier.isStatic(method.getModifiers())) {
+      handle = handle.bindTo(target);
+    }
+    return MethodHandles.insertArguments(handle, 0, leadingArgs);
+  }
+
+  static Method resolve(Class<?> target, String name, Class<?>[] argTypes) throws NoSuchMethodException {
+    List<Method> applicable = new ArrayList<Method>();
+    Set<String> seen = new HashSet<String>();
+    for (Class<?> c = target; c != null; c = c.getSuperclass()) {
+      for (Method m : c.getDeclaredMethods()) {
+        if (!m.getName().equals(name) || m.isBridge()) continue;
+        // an override was already seen lower in the hierarchy
+        if (!seen.add(Arrays.toString(m.getParameterTypes()))) continue;
+        if (isApplicable(m.getParameterTypes(), argTypes)) {
+          applicable.add(m);
+        }
+      }
+    }
+    if (applicable.isEmpty()) {
+      throw new NoSuchMethodException("Could not find method named " + name + " accepting " + Arrays.toString(argTypes));
+    }
+
+    Method best = applicable.get(0);
+    for (Method m : applicable) {
+      if (m != best && isApplicable(best.getParameterTypes(), m.getParameterTypes())
+          && !isApplicable(m.getParameterTypes(), best.getParameterTypes())) {
+        best = m;
+      }
+    }
+    return best;
+  }
+
+  private static boolean isApplicable(Class<?>[] formalParams, Class<?>[] argTypes) {
+    if (formalParams.length != argTypes.length) return false;
+    for (int i = 0; i < formalParams.length; ++i) {
+      if (argTypes[i] == null) {
+        if (formalParams[i].isPrimitive()) return false;
+      } else if (!box(formalParams[i]).isAssignableFrom(box(argTypes[i])) && !widens(argTypes[i], formalParams[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static MethodHandle spreadHandle(Method method) {
+    MethodHandle handle = directHandle(method);
+    int numParams = method.getParameterTypes().length;
+    if (Modifier.isStatic(method.getModifiers())) {
+      handle = MethodHandles.dropArguments(handle, 0, Object.class);
+    }
+    return handle.asType(MethodType.genericMethodType(numParams + 1)).asSpreader(Object[].class, numParams);
+  }
+
+  /**
+   * @return whether a value of {@code from}, boxed or not, can be passed to a {@code to} parameter by
+   * primitive widening
+   */
+  private static boolean widens(Class<?> from, Class<?> to) {
+    if (!to.isPrimitive()) return false;
+    Set<Class<?>> widenings = WIDENINGS.get(unbox(from));
+    return widenings != null && widenings.contains(to);
+  }
+
+  private static Class<?> unbox(Class<?> type) {
+    if (type.isPrimitive()) return type;
+    for (Map.Entry<Class<?>, Class<?>> e : BOXES.entrySet()) {
+      if (e.getValue() == type) return e.getKey();
+    }
+    return type;
+  }
+
+  static Class<?> box(Class<?> type) {
+    Class<?> boxed = BOXES.get(type);
+    return boxed == null ? type : boxed;
+  }
+
+  private static Class<?>[] classesOf(Object[] args) {
+    Class<?>[] classes = new Class<?>[args.length];
+    for (int i = 0; i < args.length; i++) {
+      classes[i] = args[i] == null ? null : args[i].getClass();
+    }
+    return classes;
+  }
+
+  static ScriptException scriptException(Throwable t) {
+    if (t instanceof ScriptException) return (ScriptException) t;
+    return new ScriptException(t instanceof Exception ? (Exception) t : new RuntimeException(t));
+  }
+
+  private static final class Signature {
+    private final String _name;
+    private final Class<?>[] _argTypes;
+    private final int _hash;
+
+    Signature(String name, Class<?>[] argTypes) {
+      _name = name;
+      _argTypes = argTypes;
+      _hash = 31 * name.hashCode() + Arrays.hashCode(argTypes);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Signature)) return false;
+      Signature that = (Signature) o;
+      return _hash == that._hash && _name.equals(that._name) && Arrays.equals(_argTypes, that._argTypes);
+    }
+
+    @Override
+    public int hashCode() {
+      return _hash;
+    }
+  }
+}
@@ -0,0 +1,138 @@
+package com.github.gosu.jsr223;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The built-in {@link ScriptMetrics}: keeps {@link OperationStats} per operation, both overall and per
+ * script, so that the scripts that are slow or fail can be picked out.
+ * <p>
+ * Per-script statistics are kept for a bounded number of scripts; past that, recording a new script
+ * drops the one recorded least recently, so that generated or one-off scripts cannot grow the recorder
+ * without bound. The totals always cover every script.
+ */
+public class MetricsRecorder implements ScriptMetrics {
+  public static final int DEFAULT_MAX_SCRIPTS = 1000;
+
+  private final int _maxScripts;
+  private final Map<Operation, OperationStats> _totals = statsByOperation();
+  private final ConcurrentMap<String, ScriptStats> _byScript = new ConcurrentHashMap<String, ScriptStats>();
+
+  public MetricsRecorder() {
+    this(DEFAULT_MAX_SCRIPTS);
+  }
+
+  /**
+   * @param maxScripts how many scripts to keep statistics for; zero keeps totals only
+   */
+  public MetricsRecorder(int maxScripts) {
+    if (maxScripts < 0) throw new IllegalArgumentException("maxScripts must not be negative: " + maxScripts);
+    _maxScripts = maxScripts;
+  }
+
+  private static Map<Operation, OperationStats> statsByOperation() {
+    Map<Operation, OperationStats> stats = new EnumMap<Operation, OperationStats>(Operation.class);
+    for (Operation operation : Operation.values()) {
+      stats.put(operation, new OperationStats());
+    }
+    return Collections.unmodifiableMap(stats);
+  }
+
+  private static final class ScriptStats {
+    final Map<Operation, OperationStats> _stats = statsByOperation();
+    volatile long _lastRecorded = System.nanoTime();
+  }
+
+  public int getMaxScripts() {
+    return _maxScripts;
+  }
+
+  @Override
+  public void record(String scriptId, Operation operation, long nanos, boolean successful) {
+    _totals.get(operation).record(nanos, successful);
+    if (_maxScripts == 0) return;
+
+    ScriptStats script = _byScript.get(scriptId);
+    if (script == null) {
+      script = add(scriptId);
+    } else {
+      script._lastRecorded = System.nanoTime();
+    }
+    script._stats.get(operation).record(nanos, successful);
+  }
+
+  /**
+   * Only runs for scripts not seen yet, so the scan for the least recently recorded one stays off the
+   * path of scripts that are already kept.
+   */
+  private synchronized ScriptStats add(String scriptId) {
+    ScriptStats script = _byScript.get(scriptId);
+    if (script != null) return script;
+
+    while (_byScript.size() >= _maxScripts) {
+      String eldest = null;
+      long eldestRecorded = Long.MAX_VALUE;
+      for (Map.Entry<String, ScriptStats> e : _byScript.entrySet()) {
+        if (eldest == null || e.getValue()._lastRecorded - eldestRecorded < 0) {
+          eldest = e.getKey();
+          eldestRecorded = e.getValue()._lastRecorded;
+        }
+      }
+      _byScript.remove(eldest);
+    }
+    script = new ScriptStats();
+    _byScript.put(scriptId, script);
+    return script;
+  }
+
+  /**
+   * @return the statistics of the operation across all scripts
+   */
+  public OperationStats getTotals(Operation operation) {
+    return _totals.get(operation);
+  }
+
+  /**
+   * @return the statistics of the operation for one script, or null if the script has not been recorded
+   * or was dropped since
+   */
+  public OperationStats getStats(String scriptId, Operation operation) {
+    ScriptStats script = _byScript.get(scriptId);
+    return script == null ? null : script._stats.get(operation);
+  }
+
+  /**
+   * @return how many scripts statistics are currently kept for
+   */
+  public int getScriptCount() {
+    return _byScript.size();
+  }
+
+  /**
+   * @return the identifiers of the scripts that spent the most time in the operation, at most {@code n}
+   * of them, slowest first
+   */
+  public List<String> getSlowestScripts(final Operation operation, int n) {
+    List<Map.Entry<String, ScriptStats>> scripts = new ArrayList<Map.Entry<String, ScriptStats>>(_byScript.entrySet());
+    Collections.sort(scripts, new Comparator<Map.Entry<String, ScriptStats>>() {
+      @Override
+      public int compare(Map.Entry<String, ScriptStats> a, Map.Entry<String, ScriptStats> b) {
+        long aNanos = a.getValue()._stats.get(operation).getTotalNanos();
+        long bNanos = b.getValue()._stats.get(operation).getTotalNanos();
+        return aNanos < bNanos ? 1 : aNanos == bNanos ? 0 : -1;
+      }
+    });
+    List<String> slowest = new ArrayList<String>();
+    for (Map.Entry<String, ScriptStats> e : scripts) {
+      if (slowest.size() == n || e.getValue()._stats.get(operation).getCount() == 0) break;
+      slowest.add(e.getKey());
+    }
+    return slowest;
+  }
+}
@@ -0,0 +1,80 @@
+package com.github.gosu.jsr223;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Running statistics of one kind of operation: counts, total and maximum time, and a histogram with one
+ * bucket per power of two nanoseconds, which is enough to tell a 1ms rule from a 100ms one.
+ */
+public final class OperationStats {
+  private final AtomicLong _count = new AtomicLong();
+  private final AtomicLong _failures = new AtomicLong();
+  private final AtomicLong _totalNanos = new AtomicLong();
+  private final AtomicLong _maxNanos = new AtomicLong();
+  private final AtomicLongArray _buckets = new AtomicLongArray(64);
+
+  void record(long nanos, boolean successful) {
+    _count.incrementAndGet();
+    if (!successful) {
+      _failures.incrementAndGet();
+    }
+    _totalNanos.addAndGet(nanos);
+    long max = _maxNanos.get();
+    while (nanos > max && !_maxNanos.compareAndSet(max, nanos)) {
+      max = _maxNanos.get();
+    }
+    _buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(Math.max(nanos, 1)));
+  }
+
+  public long getCount() {
+    return _count.get();
+  }
+
+  public long getFailures() {
+    return _failures.get();
+  }
+
+  public long getTotalNanos() {
+    return _totalNanos.get();
+  }
+
+  public long getMaxNanos() {
+    return _maxNanos.get();
+  }
+
+  public double getMeanMillis() {
+    long count = _count.get();
+    return count == 0 ? 0 : _totalNanos.get() / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return an upper bound, within a factor of two, of the time under which that percentage of operations
+   * completed
+   */
+  public long getPercentileNanos(double percentile) {
+    long count = 0;
+    long[] buckets = new long[_buckets.length()];
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = _buckets.get(i);
+      count += buckets[i];
+    }
+    long rank = (long) Math.ceil(count * percentile / 100);
+    long seen = 0;
+    for (int i = 0; i < buckets.length; i++) {
+      seen += buckets[i];
+      if (seen >= rank && seen > 0) {
+        return i == 62 ? Long.MAX_VALUE : (2L << i) - 1;
+      }
+    }
+    return 0;
+  }
+
+  @Override
+  public String toString() {
+    return "count=" + getCount() + ", failures=" + getFailures() + ", mean=" + getMeanMillis() + "ms, max="
+        + TimeUnit.NANOSECONDS.toMillis(getMaxNanos()) + "ms";
+  }
+}
@@ -0,0 +1,123 @@
+package com.github.gosu.jsr223;
+
+import gw.lang.parser.GosuParserFactory;
+import gw.lang.parser.IGosuProgramParser;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of Gosu program parsers shared by every engine of a {@link GosuScriptEngineFactory}.
+ * <p>
+ * A program parser keeps no state from one parse to the next (each parse builds its own internal
+ * parser), so a returned parser needs no reset before reuse; one whose parse failed with anything but a
+ * parse error is discarded rather than returned, in case it was left half-way. Borrowing never blocks:
+ * when no idle parser is available a new one is created, and parsers returned to a full pool are
+ * dropped, so the pool only bounds how many parsers are kept, not how many scripts compile at once. A
+ * pool of size zero keeps nothing and creates a parser for every parse; {@code ParseBenchmark} compares
+ * the two.
+ */
+public class ParserPool {
+  public static final int DEFAULT_MAX_IDLE = Runtime.getRuntime().availableProcessors();
+
+  // null when no parser is kept
+  private volatile ArrayBlockingQueue<IGosuProgramParser> _idle;
+
+  private final AtomicInteger _inUse = new AtomicInteger();
+  private final AtomicLong _borrows = new AtomicLong();
+  private final AtomicLong _created = new AtomicLong();
+  private final AtomicLong _discarded = new AtomicLong();
+  private final AtomicLong _borrowNanos = new AtomicLong();
+
+  ParserPool(int maxIdle) {
+    setMaxIdle(maxIdle);
+  }
+
+  IGosuProgramParser borrow() {
+    long start = System.nanoTime();
+    ArrayBlockingQueue<IGosuProgramParser> idle = _idle;
+    IGosuProgramParser parser = idle == null ? null : idle.poll();
+    if (parser == null) {
+      parser = GosuParserFactory.createProgramParser();
+      _created.incrementAndGet();
+    }
+    _borrowNanos.addAndGet(System.nanoTime() - start);
+    _borrows.incrementAndGet();
+    _inUse.incrementAndGet();
+    return parser;
+  }
+
+  /**
+   * @param reusable false if the parse ended in something other than a parse error
+   */
+  void release(IGosuProgramParser parser, boolean reusable) {
+    _inUse.decrementAndGet();
+    ArrayBlockingQueue<IGosuProgramParser> idle = _idle;
+    if (!reusable) {
+      _discarded.incrementAndGet();
+    } else if (idle != null) {
+      idle.offer(parser);
+    }
+  }
+
+  public int getMaxIdle() {
+    ArrayBlockingQueue<IGosuProgramParser> idle = _idle;
+    return idle == null ? 0 : idle.remainingCapacity() + idle.size();
+  }
+
+  /**
+   * Changes how many idle parsers are kept; zero turns pooling off. Parsers idle at the time are discarded.
+   */
+  public void setMaxIdle(int maxIdle) {
+    if (maxIdle < 0) throw new IllegalArgumentException("maxIdle must not be negative: " + maxIdle);
+    _idle = maxIdle == 0 ? null : new ArrayBlockingQueue<IGosuProgramParser>(maxIdle);
+  }
+
+  /**
+   * @return parsers waiting to be borrowed
+   */
+  public int getIdle() {
+    ArrayBlockingQueue<IGosuProgramParser> idle = _idle;
+    return idle == null ? 0 : idle.size();
+  }
+
+  /**
+   * @return parsers currently borrowed, i.e. scripts being parsed right now
+   */
+  public int getInUse() {
+    return _inUse.get();
+  }
+
+  public long getBorrows() {
+    return _borrows.get();
+  }
+
+  /**
+   * @return how many parsers had to be created because none was idle
+   */
+  public long getCreated() {
+    return _created.get();
+  }
+
+  /**
+   * @return how many parsers were dropped after a parse that failed unexpectedly
+   */
+  public long getDiscarded() {
+    return _discarded.get();
+  }
+
+  /**
+   * @return mean time spent obtaining a parser, in nanoseconds
+   */
+  public double getAverageBorrowNanos() {
+    long borrows = _borrows.get();
+    return borrows == 0 ? 0 : (double) _borrowNanos.get() / borrows;
+  }
+
+  @Override
+  public String toString() {
+    return "ParserPool[idle=" + getIdle() + ", inUse=" + getInUse() + ", borrows=" + getBorrows() +
+        ", created=" + getCreated() + ", discarded=" + getDiscarded() + ", avgBorrowNanos=" + getAverageBorrowNanos() + "]";
+  }
+}
@@ -0,0 +1,237 @@
+package com.github.gosu.jsr223;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers, across JVM restarts, every script the engine had to parse, so that a restarted JVM can
+ * re-populate its {@link ProgramCache} in the background instead of on the request path.
+ * <p>
+ * Gosu generates program classes inside its own type loader and has no supported way to define them
+ * again from stored bytecode apart from the program's type info, which evaluation, write-back and
+ * invocation all depend on. What is persisted is therefore the compilation unit, i.e. the source and
+ * the binding signature it was parsed against, one file per {@link ProgramKey}. Entries live under a
+ * directory named after the engine and Gosu versions, so upgrading either starts from an empty cache,
+ * and each entry is checked against its digest when read back.
+ * <p>
+ * Entries are written by a single background thread, never on the thread that parsed the script, and
+ * once a directory holds more than its maximum number of entries the least recently written ones are
+ * deleted.
+ */
+final class PersistentProgramCache {
+  static final int DEFAULT_MAX_ENTRIES = 1024;
+  // entries waiting for the writer beyond this are dropped; they are recorded again on their next parse
+  private static final int MAX_PENDING_WRITES = 256;
+
+  // not a script extension, so that a script directory cannot be mistaken for a cache and vice versa
+  private static final String SUFFIX = ".gosu-program";
+  private static final String SCRIPT = "script";
+  private static final String SIGNATURE = "signature";
+  private static final String DIGEST = "digest";
+
+  private static final ExecutorService WRITER = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+      new LinkedBlockingQueue<Runnable>(MAX_PENDING_WRITES),
+      ScriptExecutor.daemonThreads("gosu-program-cache"),
+      new ThreadPoolExecutor.DiscardPolicy());
+
+  private final File _dir;
+  private final int _maxEntries;
+
+  PersistentProgramCache(File root, String engineVersion, String languageVersion, int maxEntries) {
+    if (maxEntries < 1) throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+    _dir = new File(root, "gosu-" + languageVersion + "-engine-" + engineVersion);
+    _maxEntries = maxEntries;
+  }
+
+  File getDirectory() {
+    return _dir;
+  }
+
+  int getMaxEntries() {
+    return _maxEntries;
+  }
+
+  /**
+   * Queues a freshly parsed script to be recorded unless it is already recorded. Failures are swallowed:
+   * the cache is an optimization and must never fail an evaluation.
+   */
+  void store(final ProgramKey key, final String script) {
+    WRITER.execute(new Runnable() {
+      @Override
+      public void run() {
+        write(key, script);
+      }
+    });
+  }
+
+  private void write(ProgramKey key, String script) {
+    File file = fileFor(key);
+    if (file.exists()) return;
+
+    Properties entry = new Properties();
+    entry.setProperty(DIGEST, key.getDigest());
+    entry.setProperty(SIGNATURE, key.getSignature());
+    entry.setProperty(SCRIPT, script);
+    try {
+      if (!_dir.isDirectory() && !_dir.mkdirs() && !_dir.isDirectory()) return;
+      // write to a temp file and move it into place so that readers never see half an entry
+      File tmp = File.createTempFile("entry", ".tmp", _dir);
+      OutputStream out = new FileOutputStream(tmp);
+      try {
+        entry.store(out, null);
+      } finally {
+        out.close();
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      // ignored, see above
+      return;
+    }
+    trim();
+  }
+
+  /**
+   * Deletes the least recently written entries beyond the maximum.
+   */
+  private void trim() {
+    File[] files = entryFiles();
+    if (files == null || files.length <= _maxEntries) return;
+
+    final Map<File, Long> written = new HashMap<File, Long>();
+    for (File file : files) {
+      written.put(file, file.lastModified());
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        return Long.compare(written.get(a), written.get(b));
+      }
+    });
+    for (int i = 0; i < files.length - _maxEntries; i++) {
+      files[i].delete();
+    }
+  }
+
+  /**
+   * Waits until every entry queued so far has been written.
+   */
+  static void awaitWrites() throws InterruptedException {
+    try {
+      WRITER.submit(new Runnable() {
+        @Override
+        public void run() {
+        }
+      }).get();
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * @return every valid entry; invalid ones are deleted
+   */
+  List<Entry> load() {
+    List<Entry> entries = new ArrayList<Entry>();
+    File[] files = entryFiles();
+    if (files == null) return entries;
+
+    for (File file : files) {
+      Entry entry = read(file);
+      if (entry == null) {
+        file.delete();
+      } else {
+        entries.add(entry);
+      }
+    }
+    return entries;
+  }
+
+  private Entry read(File file) {
+    Properties props = new Properties();
+    try {
+      InputStream in = new FileInputStream(file);
+      try {
+        props.load(in);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      return null;
+    }
+
+    String script = props.getProperty(SCRIPT);
+    String signature = props.getProperty(SIGNATURE);
+    String digest = props.getProperty(DIGEST);
+    if (script == null || signature == null || !ScriptDigest.of(script).equals(digest)) return null;
+
+    Map<String, Class<?>> types = typesOf(signature);
+    if (types == null) return null;
+    return fileFor(digest, signature).getName().equals(file.getName()) ? new Entry(script, types) : null;
+  }
+
+  /**
+   * Parses a "name:type;" signature back into declared classes. Returns null if a class no longer
+   * exists or the signature holds an untyped null, which cannot be replayed.
+   */
+  private static Map<String, Class<?>> typesOf(String signature) {
+    Map<String, Class<?>> types = new HashMap<String, Class<?>>();
+    ClassLoader loader = Thread.currentThread().getContextClassLoader();
+    for (String symbol : signature.split(";")) {
+      if (symbol.length() == 0) continue;
+      int colon = symbol.lastIndexOf(':');
+      if (colon < 0 || symbol.endsWith(":null")) return null;
+      try {
+        types.put(symbol.substring(0, colon), Class.forName(symbol.substring(colon + 1), false, loader));
+      } catch (ClassNotFoundException e) {
+        return null;
+      }
+    }
+    return types;
+  }
+
+  private File[] entryFiles() {
+    return _dir.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return file.getName().endsWith(SUFFIX);
+      }
+    });
+  }
+
+  private File fileFor(ProgramKey key) {
+    return fileFor(key.getDigest(), key.getSignature());
+  }
+
+  private File fileFor(String digest, String signature) {
+    return new File(_dir, ScriptDigest.of(digest + signature) + SUFFIX);
+  }
+
+  static final class Entry {
+    final String _script;
+    final Map<String, Class<?>> _types;
+
+    Entry(String script, Map<String, Class<?>> types) {
+      _script = script;
+      _types = types;
+    }
+  }
+}
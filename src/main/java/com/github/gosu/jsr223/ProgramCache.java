@@ -0,0 +1,110 @@
+package com.github.gosu.jsr223;
+
+import gw.lang.reflect.gs.IGosuProgram;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, least-recently-used cache of parsed Gosu programs, keyed by script digest and binding
+ * signature. Lets repeated evaluations of the same script text skip the parser entirely.
+ * <p>
+ * One cache is shared by all engines created from the same {@link GosuScriptEngineFactory}.
+ */
+public class ProgramCache {
+  public static final int DEFAULT_MAX_SIZE = 512;
+
+  private final LinkedHashMap<ProgramKey, IGosuProgram> _programs;
+  private volatile int _maxSize;
+  private volatile boolean _enabled = true;
+
+  private final AtomicLong _hits = new AtomicLong();
+  private final AtomicLong _misses = new AtomicLong();
+  private final AtomicLong _evictions = new AtomicLong();
+
+  ProgramCache(int maxSize) {
+    _maxSize = maxSize;
+    _programs = new LinkedHashMap<ProgramKey, IGosuProgram>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<ProgramKey, IGosuProgram> eldest) {
+        if (size() > _maxSize) {
+          _evictions.incrementAndGet();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  synchronized IGosuProgram get(ProgramKey key) {
+    IGosuProgram program = _programs.get(key);
+    if (program == null) {
+      _misses.incrementAndGet();
+    } else {
+      _hits.incrementAndGet();
+    }
+    return program;
+  }
+
+  synchronized void put(ProgramKey key, IGosuProgram program) {
+    if (_maxSize > 0) {
+      _programs.put(key, program);
+    }
+  }
+
+  public boolean isEnabled() {
+    return _enabled;
+  }
+
+  /**
+   * Turns caching on or off. Disabling the cache also empties it.
+   */
+  public void setEnabled(boolean enabled) {
+    _enabled = enabled;
+    if (!enabled) {
+      clear();
+    }
+  }
+
+  public int getMaxSize() {
+    return _maxSize;
+  }
+
+  public synchronized void setMaxSize(int maxSize) {
+    if (maxSize < 0) throw new IllegalArgumentException("maxSize must not be negative: " + maxSize);
+    _maxSize = maxSize;
+    for (Iterator<ProgramKey> it = _programs.keySet().iterator(); _programs.size() > maxSize && it.hasNext(); ) {
+      it.next();
+      it.remove();
+      _evictions.incrementAndGet();
+    }
+  }
+
+  public synchronized int size() {
+    return _programs.size();
+  }
+
+  public synchronized void clear() {
+    _programs.clear();
+  }
+
+  public long getHits() {
+    return _hits.get();
+  }
+
+  public long getMisses() {
+    return _misses.get();
+  }
+
+  public long getEvictions() {
+    return _evictions.get();
+  }
+
+  @Override
+  public String toString() {
+    return "ProgramCache[size=" + size() + ", maxSize=" + _maxSize + ", hits=" + getHits() +
+        ", misses=" + getMisses() + ", evictions=" + getEvictions() + "]";
+  }
+}
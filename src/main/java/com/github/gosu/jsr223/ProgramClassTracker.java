@@ -0,0 +1,87 @@
+package com.github.gosu.jsr223;
+
+import gw.lang.parser.ParserOptions;
+import gw.lang.reflect.gs.IGosuProgram;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the classes generated for parsed programs, and how many of them the JVM has not unloaded yet,
+ * by holding each one only weakly.
+ * <p>
+ * Programs are parsed as throwaway programs where Gosu supports them
+ * ({@code ParserOptions.asThrowawayProgram()}, looked up reflectively): Gosu then defines each program
+ * in a single-serving class loader of its own instead of its module loader, and leaves it out of the
+ * type system, so a program's class can be unloaded as soon as no cache or caller references the
+ * program. Each program is thus a generation of its own. On Gosu versions without the option, program
+ * classes live as long as the module loader, i.e. as long as Gosu.
+ */
+final class ProgramClassTracker {
+  // ParserOptions.asThrowawayProgram(), or null where Gosu has no throwaway programs
+  private static final Method AS_THROWAWAY = throwawayOption();
+
+  private final ReferenceQueue<Class<?>> _unloaded = new ReferenceQueue<Class<?>>();
+  private final Set<Reference<Class<?>>> _live =
+      Collections.newSetFromMap(new ConcurrentHashMap<Reference<Class<?>>, Boolean>());
+  private final AtomicLong _created = new AtomicLong();
+
+  private static Method throwawayOption() {
+    try {
+      return ParserOptions.class.getMethod("asThrowawayProgram");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return whether programs are parsed so that their classes can be unloaded
+   */
+  static boolean isUnloadingSupported() {
+    return AS_THROWAWAY != null;
+  }
+
+  /**
+   * @return options for parsing a program whose class can be unloaded, where Gosu allows that
+   */
+  static ParserOptions parserOptions() {
+    ParserOptions options = new ParserOptions();
+    if (AS_THROWAWAY != null) {
+      try {
+        AS_THROWAWAY.invoke(options);
+      } catch (ReflectiveOperationException e) {
+        // parsed as a regular program, which is merely never unloaded
+      }
+    }
+    return options;
+  }
+
+  void track(IGosuProgram program) {
+    Class<?> programClass = program.getBackingClass();
+    if (programClass == null) return;
+    _created.incrementAndGet();
+    _live.add(new WeakReference<Class<?>>(programClass, _unloaded));
+    expunge();
+  }
+
+  long getCreated() {
+    return _created.get();
+  }
+
+  int getLive() {
+    expunge();
+    return _live.size();
+  }
+
+  private void expunge() {
+    for (Reference<? extends Class<?>> ref = _unloaded.poll(); ref != null; ref = _unloaded.poll()) {
+      _live.remove(ref);
+    }
+  }
+}
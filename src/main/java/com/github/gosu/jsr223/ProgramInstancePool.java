@@ -0,0 +1,36 @@
+package com.github.gosu.jsr223;
+
+import gw.lang.reflect.gs.IGosuProgram;
+import gw.lang.reflect.gs.IProgramInstance;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A small bounded pool of instances of one program. Evaluating a program re-runs its var initializers,
+ * so an instance can be reused once the evaluation that borrowed it has finished; vars declared without
+ * an initializer keep whatever the previous evaluation left in them, so only pool scripts that
+ * initialize their vars.
+ * <p>
+ * A pool of size zero never retains anything and hands out a fresh instance for every borrow.
+ */
+final class ProgramInstancePool {
+  private final IGosuProgram _gosuProgram;
+  private final ArrayBlockingQueue<IProgramInstance> _idle;
+
+  ProgramInstancePool(IGosuProgram gosuProgram, int size) {
+    _gosuProgram = gosuProgram;
+    _idle = size > 0 ? new ArrayBlockingQueue<IProgramInstance>(size) : null;
+  }
+
+  IProgramInstance borrow() {
+    IProgramInstance instance = _idle == null ? null : _idle.poll();
+    return instance == null ? _gosuProgram.getProgramInstance() : instance;
+  }
+
+  void release(IProgramInstance instance) {
+    if (_idle != null) {
+      // when the pool is full the instance is simply dropped
+      _idle.offer(instance);
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package com.github.gosu.jsr223;
+
+import javax.script.Bindings;
+import javax.script.ScriptContext;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Cache key for a parsed program: the digest of the script text plus the names and types of the
+ * symbols it was parsed against. The same text bound to differently-typed values parses differently,
+ * so both halves are needed. Types are compared by identity, not just by name, so that a class of the
+ * same name from another class loader does not pick up a program parsed against the first one; the
+ * {@link #getSignature() signature} alone, which is what gets persisted, only holds their names.
+ */
+final class ProgramKey {
+  private final String _digest;
+  private final String _signature;
+  // in signature order; null for a symbol bound to null
+  private final Class<?>[] _classes;
+  private final int _hash;
+
+  ProgramKey(String digest, String signature, Class<?>[] classes) {
+    _digest = digest;
+    _signature = signature;
+    _classes = classes;
+    _hash = 31 * digest.hashCode() + signature.hashCode();
+  }
+
+  /**
+   * @param declaredClasses declared binding types, or null
+   */
+  static ProgramKey of(ScriptSource source, ScriptContext context, Map<String, Class<?>> declaredClasses) {
+    Map<String, Class<?>> types = typesOf(context, declaredClasses);
+    return new ProgramKey(source.digest(), signatureOf(types), types.values().toArray(new Class<?>[types.size()]));
+  }
+
+  /**
+   * Collects the types of the symbols visible in the context, by name. Engine scope shadows global
+   * scope, and declared types override both, the same way they do in the symbol table.
+   */
+  private static Map<String, Class<?>> typesOf(ScriptContext context, Map<String, Class<?>> declaredClasses) {
+    Map<String, Class<?>> types = new TreeMap<String, Class<?>>();
+    if (context != null) {
+      addTypes(types, context.getBindings(ScriptContext.GLOBAL_SCOPE));
+      addTypes(types, context.getBindings(ScriptContext.ENGINE_SCOPE));
+    }
+    if (declaredClasses != null) {
+      types.putAll(declaredClasses);
+    }
+    return types;
+  }
+
+  /**
+   * Builds a stable "name:type;" string from the types of the symbols.
+   */
+  private static String signatureOf(Map<String, Class<?>> types) {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, Class<?>> e : types.entrySet()) {
+      sb.append(e.getKey()).append(':').append(e.getValue() == null ? "null" : e.getValue().getName()).append(';');
+    }
+    return sb.toString();
+  }
+
+  private static void addTypes(Map<String, Class<?>> types, Bindings bindings) {
+    if (bindings == null) return;
+    for (Map.Entry<String, Object> e : bindings.entrySet()) {
+      if (!SymbolMarshaller.isSymbolName(e.getKey())) continue;
+      Object v = e.getValue();
+      types.put(e.getKey(), v == null ? null : v.getClass());
+    }
+  }
+
+  String getDigest() {
+    return _digest;
+  }
+
+  String getSignature() {
+    return _signature;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof ProgramKey)) return false;
+    ProgramKey that = (ProgramKey) o;
+    return _hash == that._hash && _digest.equals(that._digest) && _signature.equals(that._signature)
+        && Arrays.equals(_classes, that._classes);
+  }
+
+  @Override
+  public int hashCode() {
+    return _hash;
+  }
+
+  @Override
+  public String toString() {
+    return _digest + "[" + _signature + "]";
+  }
+}
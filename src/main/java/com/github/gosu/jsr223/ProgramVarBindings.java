@@ -0,0 +1,83 @@
+package com.github.gosu.jsr223;
+
+import gw.lang.reflect.IPropertyInfo;
+import gw.lang.reflect.gs.IProgramInstance;
+
+import javax.script.Bindings;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read-only view of the program vars of one evaluated program instance. Values are read through the
+ * property accessors only when asked for.
+ */
+class ProgramVarBindings extends AbstractMap<String, Object> implements Bindings {
+  private final Map<String, IPropertyInfo> _vars;
+  private final IProgramInstance _instance;
+
+  ProgramVarBindings(Map<String, IPropertyInfo> vars, IProgramInstance instance) {
+    _vars = vars;
+    _instance = instance;
+  }
+
+  @Override
+  public Object get(Object key) {
+    IPropertyInfo var = _vars.get(key);
+    return var == null ? null : var.getAccessor().getValue(_instance);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return _vars.containsKey(key);
+  }
+
+  @Override
+  public int size() {
+    return _vars.size();
+  }
+
+  @Override
+  public Object put(String name, Object value) {
+    throw new UnsupportedOperationException("Program vars are read-only");
+  }
+
+  @Override
+  public void putAll(Map<? extends String, ? extends Object> toMerge) {
+    throw new UnsupportedOperationException("Program vars are read-only");
+  }
+
+  @Override
+  public Set<Entry<String, Object>> entrySet() {
+    return new AbstractSet<Entry<String, Object>>() {
+      @Override
+      public Iterator<Entry<String, Object>> iterator() {
+        final Iterator<String> names = _vars.keySet().iterator();
+        return new Iterator<Entry<String, Object>>() {
+          @Override
+          public boolean hasNext() {
+            return names.hasNext();
+          }
+
+          @Override
+          public Entry<String, Object> next() {
+            String name = names.next();
+            return new SimpleImmutableEntry<String, Object>(name, get(name));
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException("Program vars are read-only");
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return _vars.size();
+      }
+    };
+  }
+}
@@ -0,0 +1,38 @@
+package com.github.gosu.jsr223;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content hash of a script's source text, used to address parsed programs in the {@link ProgramCache}.
+ */
+final class ScriptDigest {
+  static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private ScriptDigest() {
+  }
+
+  static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // every JRE is required to ship SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static String of(String script) {
+    return toHex(newDigest().digest(script.getBytes(UTF8)));
+  }
+
+  static String toHex(byte[] bytes) {
+    char[] out = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      out[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+      out[i * 2 + 1] = HEX[bytes[i] & 0xf];
+    }
+    return new String(out);
+  }
+}
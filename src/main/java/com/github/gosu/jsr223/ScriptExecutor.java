@@ -0,0 +1,312 @@
+package com.github.gosu.jsr223;
+
+import javax.script.ScriptException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs evaluations that have {@link ExecutionLimits} on worker threads, watched by a single watchdog
+ * thread that cancels them when they exceed their wall-clock or CPU limit.
+ * <p>
+ * Cancelling interrupts the worker. Gosu has no safepoint at which a running script could be stopped
+ * from outside, and the JVM no longer offers a way to kill a thread, so a script only actually stops if
+ * it blocks interruptibly or checks {@code Thread.currentThread().isInterrupted()}. One that does neither
+ * cannot be stopped: its caller is released as soon as the limit is hit, but the script runs on to its
+ * end, holding its worker, and is counted as {@link #getAbandoned() abandoned} meanwhile.
+ * <p>
+ * There are at most {@link GosuScriptEngineFactory#MAX_WORKERS_PROPERTY gosu.jsr223.maxWorkers} workers,
+ * so that abandoned scripts cannot exhaust the process's threads; a limited evaluation started while all
+ * of them are busy fails at once rather than queueing behind them.
+ */
+final class ScriptExecutor {
+  private static final long CPU_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+  static final int MAX_WORKERS = Math.max(1, Integer.getInteger(GosuScriptEngineFactory.MAX_WORKERS_PROPERTY,
+      Math.max(16, 4 * Runtime.getRuntime().availableProcessors())));
+  private static final ExecutorService WORKERS = new ThreadPoolExecutor(0, MAX_WORKERS, 60, TimeUnit.SECONDS,
+      new SynchronousQueue<Runnable>(), daemonThreads("gosu-script"));
+  private static final AtomicInteger ABANDONED = new AtomicInteger();
+  private static final ScheduledExecutorService WATCHDOG =
+      Executors.newSingleThreadScheduledExecutor(daemonThreads("gosu-watchdog"));
+  private static final Executor ASYNC = asyncExecutor();
+
+  private ScriptExecutor() {
+  }
+
+  /**
+   * Runs the task on a worker, returning a future that the limits, or the caller, can cancel.
+   */
+  static Evaluation submit(Callable<Object> task, ExecutionLimits limits) throws ScriptException {
+    Evaluation evaluation = new Evaluation(task, limits);
+    try {
+      WORKERS.execute(evaluation);
+    } catch (RejectedExecutionException e) {
+      evaluation.cancel(false);
+      throw new ScriptException("All " + MAX_WORKERS + " script workers are busy; see "
+          + GosuScriptEngineFactory.MAX_WORKERS_PROPERTY);
+    }
+    return evaluation;
+  }
+
+  /**
+   * @return limited evaluations that were stopped but whose scripts are still running, each holding a worker
+   */
+  static int getAbandoned() {
+    return ABANDONED.get();
+  }
+
+  /**
+   * Runs the task within its limits and waits for it. Without limits the task simply runs on the calling
+   * thread.
+   */
+  static Object call(Callable<Object> task, ExecutionLimits limits) throws ScriptException {
+    if (limits == null || limits.isUnbounded()) {
+      try {
+        return task.call();
+      } catch (Exception e) {
+        throw MethodDispatcher.scriptException(e);
+      }
+    }
+
+    Evaluation evaluation = submit(task, limits);
+    try {
+      return evaluation.get();
+    } catch (CancellationException e) {
+      throw new ScriptException(evaluation.getCancelReason());
+    } catch (ExecutionException e) {
+      throw MethodDispatcher.scriptException(e.getCause());
+    } catch (InterruptedException e) {
+      evaluation.stop("Evaluation was interrupted");
+      Thread.currentThread().interrupt();
+      throw new ScriptException(e);
+    }
+  }
+
+  /**
+   * Runs the task on the executor, within its limits if it has any, completing the returned future with
+   * its result or exception. Cancelling the future interrupts the task.
+   */
+  static CompletableFuture<Object> async(Callable<Object> task, ExecutionLimits limits, Executor executor) {
+    AsyncEvaluation evaluation = new AsyncEvaluation(task, limits);
+    try {
+      executor.execute(evaluation);
+    } catch (RejectedExecutionException e) {
+      evaluation.completeExceptionally(e);
+    }
+    return evaluation;
+  }
+
+  /**
+   * @return the executor asynchronous evaluations run on unless the engine is given another one
+   */
+  static Executor defaultAsyncExecutor() {
+    return ASYNC;
+  }
+
+  /**
+   * A virtual thread per task where the JVM has them (Java 21 and later), found reflectively so that the
+   * engine still runs on older JVMs; otherwise a daemon thread per processor over an unbounded queue, so
+   * that any number of evaluations can be started at once. It is kept apart from the limited workers:
+   * only asynchronous evaluations that have limits of their own take one of those, and there are
+   * fewer async threads than workers by default.
+   */
+  private static Executor asyncExecutor() {
+    try {
+      return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      int threads = Runtime.getRuntime().availableProcessors();
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), daemonThreads("gosu-async"));
+      pool.allowCoreThreadTimeOut(true);
+      return pool;
+    }
+  }
+
+  static ThreadFactory daemonThreads(final String prefix) {
+    final AtomicInteger count = new AtomicInteger();
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  /**
+   * A limited evaluation. The watchdog stops it at its deadline or when its thread has used up its CPU
+   * budget.
+   */
+  static final class Evaluation extends FutureTask<Object> {
+    private final long _cpuBudgetNanos;
+    private volatile Thread _runner;
+    private volatile long _cpuStart;
+    private volatile String _cancelReason = "Evaluation was cancelled";
+    private volatile ScheduledFuture<?> _deadline;
+    private volatile ScheduledFuture<?> _cpuWatch;
+    // guarded by this
+    private boolean _abandoned;
+
+    Evaluation(Callable<Object> task, final ExecutionLimits limits) {
+      super(task);
+      _cpuBudgetNanos = TimeUnit.MILLISECONDS.toNanos(limits._cpuBudgetMillis);
+      if (limits._timeoutMillis > 0) {
+        _deadline = WATCHDOG.schedule(new Runnable() {
+          @Override
+          public void run() {
+            stop("Evaluation timed out after " + limits._timeoutMillis + " ms");
+          }
+        }, limits._timeoutMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    @Override
+    public void run() {
+      synchronized (this) {
+        // stopped before it got a worker; FutureTask.run() would do nothing either
+        if (isDone()) return;
+        _runner = Thread.currentThread();
+      }
+      try {
+        if (_cpuBudgetNanos > 0 && THREADS.isCurrentThreadCpuTimeSupported()) {
+          _cpuStart = THREADS.getCurrentThreadCpuTime();
+          long period = Math.min(CPU_CHECK_NANOS, _cpuBudgetNanos);
+          _cpuWatch = WATCHDOG.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+              checkCpu();
+            }
+          }, period, period, TimeUnit.NANOSECONDS);
+          if (isDone()) return;
+        }
+        super.run();
+      } finally {
+        synchronized (this) {
+          _runner = null;
+          if (_abandoned) {
+            ABANDONED.decrementAndGet();
+          }
+        }
+        cancelWatchers();
+      }
+    }
+
+    private void checkCpu() {
+      Thread runner = _runner;
+      if (runner == null) return;
+      long used = THREADS.getThreadCpuTime(runner.getId()) - _cpuStart;
+      if (used > _cpuBudgetNanos) {
+        stop("Evaluation exceeded its CPU budget of " + TimeUnit.NANOSECONDS.toMillis(_cpuBudgetNanos) + " ms");
+      }
+    }
+
+    void stop(String reason) {
+      if (isDone()) return;
+      _cancelReason = reason;
+      synchronized (this) {
+        // counted before cancelling releases the caller, so that the caller sees it
+        boolean abandoning = _runner != null && !_abandoned;
+        if (abandoning) {
+          _abandoned = true;
+          ABANDONED.incrementAndGet();
+        }
+        if (!cancel(true) && abandoning) {
+          _abandoned = false;
+          ABANDONED.decrementAndGet();
+        }
+      }
+    }
+
+    String getCancelReason() {
+      return _cancelReason;
+    }
+
+    @Override
+    protected void done() {
+      cancelWatchers();
+    }
+
+    private void cancelWatchers() {
+      ScheduledFuture<?> deadline = _deadline;
+      if (deadline != null) {
+        deadline.cancel(false);
+      }
+      ScheduledFuture<?> cpuWatch = _cpuWatch;
+      if (cpuWatch != null) {
+        cpuWatch.cancel(false);
+      }
+    }
+  }
+
+  /**
+   * An asynchronous evaluation, and the task that performs it.
+   */
+  static final class AsyncEvaluation extends CompletableFuture<Object> implements Runnable {
+    private final Callable<Object> _task;
+    private final ExecutionLimits _limits;
+    private final Object _runnerLock = new Object();
+    private Thread _runner;
+    // whether cancel() interrupted the runner; guarded by _runnerLock
+    private boolean _interrupted;
+
+    AsyncEvaluation(Callable<Object> task, ExecutionLimits limits) {
+      _task = task;
+      _limits = limits;
+    }
+
+    @Override
+    public void run() {
+      if (isDone()) return;
+      synchronized (_runnerLock) {
+        _runner = Thread.currentThread();
+      }
+      try {
+        complete(_limits == null || _limits.isUnbounded() ? _task.call() : call(_task, _limits));
+      } catch (Throwable t) {
+        completeExceptionally(t);
+      } finally {
+        synchronized (_runnerLock) {
+          _runner = null;
+          // a cancel that raced with completion must not leave the executor's thread interrupted, but
+          // an interrupt from anyone else, e.g. the executor shutting down, is left for the executor
+          if (_interrupted) {
+            Thread.interrupted();
+          }
+        }
+      }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      boolean cancelled = super.cancel(mayInterruptIfRunning);
+      if (cancelled) {
+        synchronized (_runnerLock) {
+          if (_runner != null) {
+            _interrupted = true;
+            _runner.interrupt();
+          }
+        }
+      }
+      return cancelled;
+    }
+  }
+}
@@ -0,0 +1,137 @@
+package com.github.gosu.jsr223;
+
+import javax.script.ScriptException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.WrongMethodTypeException;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * A handle on one function of a compiled script, resolved once and typed by the caller, so that calling
+ * it in a hot loop neither looks anything up nor allocates: the script's symbol map is bound into the
+ * handle, and primitive arguments and results are passed as primitives when the function declares them
+ * so.
+ * <p>
+ * Obtained from {@link GosuCompiledScript#getFunction}. Calls run on the same program instance as
+ * {@link javax.script.Invocable#invokeFunction}, and bypass metrics and profiling.
+ */
+public final class ScriptFunction {
+  private final String _name;
+  private final MethodHandle _handle;
+
+  ScriptFunction(String name, MethodHandle handle) {
+    _name = name;
+    _handle = handle;
+  }
+
+  public String getName() {
+    return _name;
+  }
+
+  /**
+   * @return a handle of exactly the type the function was requested with, to embed in other method
+   * handle chains or to call with {@code invokeExact}
+   */
+  public MethodHandle toMethodHandle() {
+    return _handle;
+  }
+
+  /**
+   * Calls the function with boxed arguments; convenient, but not allocation-free.
+   */
+  public Object invoke(Object... args) throws ScriptException {
+    try {
+      return _handle.invokeWithArguments(args);
+    } catch (Error e) {
+      throw e;
+    } catch (Throwable t) {
+      throw MethodDispatcher.scriptException(t);
+    }
+  }
+
+  /**
+   * @throws IllegalArgumentException if the function cannot be called as {@code (double)double}
+   */
+  public DoubleUnaryOperator asDoubleUnaryOperator() {
+    final MethodHandle handle = adapt(MethodType.methodType(double.class, double.class));
+    return new DoubleUnaryOperator() {
+      @Override
+      public double applyAsDouble(double operand) {
+        try {
+          return (double) handle.invokeExact(operand);
+        } catch (Throwable t) {
+          throw unchecked(t);
+        }
+      }
+    };
+  }
+
+  /**
+   * @throws IllegalArgumentException if the function cannot be called as {@code (double, double)double}
+   */
+  public DoubleBinaryOperator asDoubleBinaryOperator() {
+    final MethodHandle handle = adapt(MethodType.methodType(double.class, double.class, double.class));
+    return new DoubleBinaryOperator() {
+      @Override
+      public double applyAsDouble(double left, double right) {
+        try {
+          return (double) handle.invokeExact(left, right);
+        } catch (Throwable t) {
+          throw unchecked(t);
+        }
+      }
+    };
+  }
+
+  /**
+   * @throws IllegalArgumentException if the function cannot be called as {@code (int)int}
+   */
+  public IntUnaryOperator asIntUnaryOperator() {
+    final MethodHandle handle = adapt(MethodType.methodType(int.class, int.class));
+    return new IntUnaryOperator() {
+      @Override
+      public int applyAsInt(int operand) {
+        try {
+          return (int) handle.invokeExact(operand);
+        } catch (Throwable t) {
+          throw unchecked(t);
+        }
+      }
+    };
+  }
+
+  /**
+   * @throws IllegalArgumentException if the function cannot be called as {@code (int, int)int}
+   */
+  public IntBinaryOperator asIntBinaryOperator() {
+    final MethodHandle handle = adapt(MethodType.methodType(int.class, int.class, int.class));
+    return new IntBinaryOperator() {
+      @Override
+      public int applyAsInt(int left, int right) {
+        try {
+          return (int) handle.invokeExact(left, right);
+        } catch (Throwable t) {
+          throw unchecked(t);
+        }
+      }
+    };
+  }
+
+  private MethodHandle adapt(MethodType type) {
+    try {
+      return _handle.asType(type);
+    } catch (WrongMethodTypeException e) {
+      throw new IllegalArgumentException(_name + _handle.type() + " cannot be called as " + type, e);
+    }
+  }
+
+  private static RuntimeException unchecked(Throwable t) {
+    if (t instanceof Error) throw (Error) t;
+    if (t instanceof RuntimeException) return (RuntimeException) t;
+    return new UndeclaredThrowableException(t);
+  }
+}
@@ -0,0 +1,33 @@
+package com.github.gosu.jsr223;
+
+/**
+ * Receives a timing for every instrumented operation of the engines of one factory. Install an
+ * implementation with {@link GosuScriptEngineFactory#setMetrics} to forward timings to any metrics
+ * library, or use the built-in {@link MetricsRecorder} through
+ * {@link GosuScriptEngineFactory#enableMetrics()}.
+ * <p>
+ * While no metrics are installed, nothing is timed. Implementations are called on the evaluating
+ * thread, possibly by many threads at once, and should return quickly.
+ */
+public interface ScriptMetrics {
+
+  enum Operation {
+    /** Parsing a script that was not found in the program cache. */
+    COMPILE,
+    /** Running a program, without moving bindings in and out. */
+    EVAL,
+    /** Building the symbol table from the bindings before an evaluation. */
+    LOAD_BINDINGS,
+    /** Handing program vars back to the bindings after an evaluation. */
+    UNLOAD_BINDINGS,
+    INVOKE_FUNCTION,
+    INVOKE_METHOD
+  }
+
+  /**
+   * @param scriptId   the script's {@link GosuCompiledScript#getScriptId() identifier}
+   * @param nanos      how long the operation took
+   * @param successful false if the operation threw
+   */
+  void record(String scriptId, Operation operation, long nanos, boolean successful);
+}
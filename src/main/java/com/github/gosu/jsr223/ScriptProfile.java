@@ -0,0 +1,78 @@
+package com.github.gosu.jsr223;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What one script has cost so far, as measured by a {@link ScriptProfiler}: evaluations and invocations,
+ * CPU time and wall-clock time of the evaluating thread, and bytes it allocated.
+ */
+public final class ScriptProfile {
+  private final String _scriptId;
+  private final AtomicLong _count = new AtomicLong();
+  private final AtomicLong _cpuNanos = new AtomicLong();
+  private final AtomicLong _wallNanos = new AtomicLong();
+  private final AtomicLong _allocatedBytes = new AtomicLong();
+  private final AtomicLong _unmeasured = new AtomicLong();
+  // when the profile was last added to, for the profiler to drop the least recent
+  volatile long _lastRecorded = System.nanoTime();
+
+  ScriptProfile(String scriptId) {
+    _scriptId = scriptId;
+  }
+
+  /**
+   * @param cpuNanos       -1 if not measured
+   * @param allocatedBytes -1 if not measured
+   */
+  void add(long cpuNanos, long wallNanos, long allocatedBytes) {
+    _lastRecorded = System.nanoTime();
+    _count.incrementAndGet();
+    _wallNanos.addAndGet(wallNanos);
+    if (cpuNanos < 0) {
+      _unmeasured.incrementAndGet();
+    } else {
+      _cpuNanos.addAndGet(cpuNanos);
+    }
+    if (allocatedBytes > 0) {
+      _allocatedBytes.addAndGet(allocatedBytes);
+    }
+  }
+
+  public String getScriptId() {
+    return _scriptId;
+  }
+
+  public long getCount() {
+    return _count.get();
+  }
+
+  /**
+   * @return evaluations whose CPU time could not be measured, e.g. because they ran on a virtual thread;
+   *         they count towards the wall-clock time only
+   */
+  public long getUnmeasuredCount() {
+    return _unmeasured.get();
+  }
+
+  public long getCpuNanos() {
+    return _cpuNanos.get();
+  }
+
+  public long getWallNanos() {
+    return _wallNanos.get();
+  }
+
+  /**
+   * @return bytes allocated, or zero on JVMs that cannot measure allocation per thread
+   */
+  public long getAllocatedBytes() {
+    return _allocatedBytes.get();
+  }
+
+  @Override
+  public String toString() {
+    return _scriptId + ": count=" + getCount() + ", cpu=" + TimeUnit.NANOSECONDS.toMillis(getCpuNanos())
+        + "ms, wall=" + TimeUnit.NANOSECONDS.toMillis(getWallNanos()) + "ms, allocated=" + getAllocatedBytes() + "B";
+  }
+}
@@ -0,0 +1,267 @@
+package com.github.gosu.jsr223;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Opt-in profiler that measures the CPU time and heap allocation of every evaluation and invocation,
+ * per script, so that the few expensive scripts among thousands can be found. Install it with
+ * {@link GosuScriptEngineFactory#setProfiler}; scripts are told apart by
+ * {@link GosuCompiledScript#getScriptId()}.
+ * <p>
+ * Measurements come from the {@link ThreadMXBean} counters of the evaluating thread, so they include
+ * whatever the script calls into, and allocation is only measured on JVMs that support it (HotSpot and
+ * its derivatives). The JVM keeps neither counter for virtual threads, so evaluations on a virtual
+ * thread, e.g. through the default {@link GosuScriptEngine#setAsyncExecutor asynchronous executor} on
+ * Java 21, only add their wall-clock time and are counted as {@link ScriptProfile#getUnmeasuredCount()
+ * unmeasured}. Each evaluation can also be {@link #setFlightRecorderEvents emitted} as a Flight
+ * Recorder event.
+ * <p>
+ * Profiles are kept for a bounded number of scripts, the least recently profiled one being dropped to
+ * make room, as {@link MetricsRecorder} does. Allocation measurement is switched on for the JVM while a
+ * profiler is installed in some factory, and back to what it was once none is.
+ */
+public class ScriptProfiler {
+  public static final int DEFAULT_MAX_SCRIPTS = 1000;
+
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+  private static final com.sun.management.ThreadMXBean ALLOCATIONS = allocations();
+  // ScriptEvaluationEvent.emit, or null without Flight Recorder
+  private static final MethodHandle EMIT_EVENT = eventEmitter();
+
+  // installations across all factories, and whether allocation measurement was on before the first; guarded by the class
+  private static int _installed;
+  private static boolean _allocationsWereEnabled;
+
+  private final int _maxScripts;
+  private final ConcurrentMap<String, ScriptProfile> _profiles = new ConcurrentHashMap<String, ScriptProfile>();
+  private volatile boolean _flightRecorderEvents;
+
+  public ScriptProfiler() {
+    this(DEFAULT_MAX_SCRIPTS);
+  }
+
+  /**
+   * @param maxScripts how many scripts to keep profiles for
+   */
+  public ScriptProfiler(int maxScripts) {
+    if (maxScripts <= 0) throw new IllegalArgumentException("maxScripts must be positive: " + maxScripts);
+    _maxScripts = maxScripts;
+  }
+
+  private static com.sun.management.ThreadMXBean allocations() {
+    try {
+      if (THREADS instanceof com.sun.management.ThreadMXBean) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+        if (threads.isThreadAllocatedMemorySupported()) {
+          return threads;
+        }
+      }
+    } catch (LinkageError e) {
+      // not a HotSpot JVM
+    } catch (UnsupportedOperationException e) {
+      // fall through
+    }
+    return null;
+  }
+
+  /**
+   * Called when a factory starts using a profiler; switches allocation measurement on for the first.
+   */
+  static synchronized void installed() {
+    if (_installed++ > 0 || ALLOCATIONS == null) return;
+    try {
+      _allocationsWereEnabled = ALLOCATIONS.isThreadAllocatedMemoryEnabled();
+      ALLOCATIONS.setThreadAllocatedMemoryEnabled(true);
+    } catch (UnsupportedOperationException e) {
+      // measured as -1
+    }
+  }
+
+  /**
+   * Called when a factory stops using a profiler; restores allocation measurement after the last.
+   */
+  static synchronized void removed() {
+    if (--_installed > 0 || ALLOCATIONS == null || _allocationsWereEnabled) return;
+    try {
+      ALLOCATIONS.setThreadAllocatedMemoryEnabled(false);
+    } catch (UnsupportedOperationException e) {
+      // never switched on
+    }
+  }
+
+  public int getMaxScripts() {
+    return _maxScripts;
+  }
+
+  /**
+   * The event lives in src/main/java11, compiled for Java 11 on its own, so that nothing the engine loads
+   * on Java 8 refers to {@code jdk.jfr}.
+   */
+  private static MethodHandle eventEmitter() {
+    try {
+      Class.forName("jdk.jfr.Event");
+      return MethodHandles.lookup().findStatic(Class.forName("com.github.gosu.jsr223.ScriptEvaluationEvent"), "emit",
+          MethodType.methodType(void.class, String.class, String.class, long.class, long.class, long.class));
+    } catch (ReflectiveOperationException e) {
+      return null;
+    } catch (LinkageError e) {
+      // a Java 8 JVM that has Flight Recorder but cannot load Java 11 classes
+      return null;
+    }
+  }
+
+  /**
+   * Sets whether every profiled evaluation is also committed as a {@code com.github.gosu.jsr223.ScriptEvaluation}
+   * Flight Recorder event. Ignored on JVMs without Flight Recorder, and on Java 8.
+   */
+  public void setFlightRecorderEvents(boolean flightRecorderEvents) {
+    _flightRecorderEvents = flightRecorderEvents && EMIT_EVENT != null;
+  }
+
+  public boolean isFlightRecorderEvents() {
+    return _flightRecorderEvents;
+  }
+
+  /**
+   * @return the current thread's CPU time, or -1 if it is not measured, as on virtual threads
+   */
+  long threadCpuNanos() {
+    return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+  }
+
+  /**
+   * @return the bytes the current thread has allocated, or -1 if they are not measured
+   */
+  long threadAllocatedBytes() {
+    // -1 as well while measurement is switched off
+    return ALLOCATIONS == null ? -1 : ALLOCATIONS.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static long difference(long start, long end) {
+    return start < 0 || end < 0 ? -1 : end - start;
+  }
+
+  /**
+   * Records an operation that started when the thread's counters read {@code cpuStart} and
+   * {@code allocatedStart}, and the clock {@code wallStart}; must be called on the same thread.
+   */
+  void record(String scriptId, ScriptMetrics.Operation operation, long wallStart, long cpuStart, long allocatedStart) {
+    long wallNanos = System.nanoTime() - wallStart;
+    long cpuNanos = difference(cpuStart, threadCpuNanos());
+    long allocatedBytes = difference(allocatedStart, threadAllocatedBytes());
+    ScriptProfile profile = _profiles.get(scriptId);
+    if (profile == null) {
+      profile = add(scriptId);
+    }
+    profile.add(cpuNanos, wallNanos, allocatedBytes);
+    if (_flightRecorderEvents) {
+      try {
+        EMIT_EVENT.invokeExact(scriptId, operation.name(), wallNanos, Math.max(0, cpuNanos), Math.max(0, allocatedBytes));
+      } catch (Throwable t) {
+        // profiling must never fail the evaluation it measured
+      }
+    }
+  }
+
+  /**
+   * Only runs for scripts not seen yet, so the scan for the least recently profiled one stays off the
+   * path of scripts that are already kept.
+   */
+  private synchronized ScriptProfile add(String scriptId) {
+    ScriptProfile profile = _profiles.get(scriptId);
+    if (profile != null) return profile;
+
+    while (_profiles.size() >= _maxScripts) {
+      String eldest = null;
+      long eldestRecorded = Long.MAX_VALUE;
+      for (Map.Entry<String, ScriptProfile> e : _profiles.entrySet()) {
+        if (eldest == null || e.getValue()._lastRecorded - eldestRecorded < 0) {
+          eldest = e.getKey();
+          eldestRecorded = e.getValue()._lastRecorded;
+        }
+      }
+      _profiles.remove(eldest);
+    }
+    profile = new ScriptProfile(scriptId);
+    _profiles.put(scriptId, profile);
+    return profile;
+  }
+
+  /**
+   * @return how many scripts profiles are currently kept for
+   */
+  public int getScriptCount() {
+    return _profiles.size();
+  }
+
+  /**
+   * @return the profile of one script, or null if it has not been profiled or was dropped since
+   */
+  public ScriptProfile getProfile(String scriptId) {
+    return _profiles.get(scriptId);
+  }
+
+  /**
+   * @return at most {@code n} profiles, the most CPU time first
+   */
+  public List<ScriptProfile> getTopByCpu(int n) {
+    return top(n, new Comparator<ScriptProfile>() {
+      @Override
+      public int compare(ScriptProfile a, ScriptProfile b) {
+        return Long.compare(b.getCpuNanos(), a.getCpuNanos());
+      }
+    });
+  }
+
+  /**
+   * @return at most {@code n} profiles, the most bytes allocated first
+   */
+  public List<ScriptProfile> getTopByAllocation(int n) {
+    return top(n, new Comparator<ScriptProfile>() {
+      @Override
+      public int compare(ScriptProfile a, ScriptProfile b) {
+        return Long.compare(b.getAllocatedBytes(), a.getAllocatedBytes());
+      }
+    });
+  }
+
+  private List<ScriptProfile> top(int n, Comparator<ScriptProfile> order) {
+    List<ScriptProfile> profiles = new ArrayList<ScriptProfile>(_profiles.values());
+    Collections.sort(profiles, order);
+    return profiles.size() > n ? new ArrayList<ScriptProfile>(profiles.subList(0, n)) : profiles;
+  }
+
+  /**
+   * @return a plain-text report of the {@code n} scripts that used the most CPU and of the {@code n} that
+   * allocated the most
+   */
+  public String report(int n) {
+    StringBuilder report = new StringBuilder("Top ").append(n).append(" scripts by CPU time:\n");
+    for (ScriptProfile profile : getTopByCpu(n)) {
+      report.append("  ").append(profile).append('\n');
+    }
+    report.append("Top ").append(n).append(" scripts by allocation:\n");
+    for (ScriptProfile profile : getTopByAllocation(n)) {
+      report.append("  ").append(profile).append('\n');
+    }
+    return report.toString();
+  }
+
+  /**
+   * Forgets every profile recorded so far.
+   */
+  public void clear() {
+    _profiles.clear();
+  }
+}
@@ -0,0 +1,286 @@
+package com.github.gosu.jsr223;
+
+import javax.script.Bindings;
+import javax.script.ScriptException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compiled scripts kept in sync with script files in watched directories. Files with one of the
+ * extensions of the engine's factory are compiled when a directory is {@link #watch watched}, and a
+ * background thread recompiles each one that changes and atomically publishes the result; callers that
+ * already {@link #get got} the previous version finish their evaluations on it.
+ * <p>
+ * Changes are picked up through a {@link WatchService}. Events are collected until the directories have
+ * been quiet for a short while, so that an editor's save or a deployment touching many files leads to
+ * one recompilation per file, and a file whose content did not actually change, as told by its digest,
+ * is not recompiled at all. A file that fails to compile keeps its previous version published and its
+ * error is available from {@link #getErrors()}.
+ * <p>
+ * Scripts are named by their path relative to the watched directory, with '/' separators. Deleting a
+ * file, or a directory, removes the scripts it held.
+ */
+public class ScriptRepository implements Closeable {
+  private static final long QUIET_MILLIS = 100;
+
+  private final GosuScriptEngine _engine;
+  private final Set<String> _extensions;
+  private final Map<String, Class<?>> _bindingTypes;
+  private final WatchService _watchService;
+  private final Map<WatchKey, Path> _directories = new ConcurrentHashMap<WatchKey, Path>();
+  private final Map<WatchKey, Path> _roots = new ConcurrentHashMap<WatchKey, Path>();
+  private final ConcurrentMap<String, Version> _scripts = new ConcurrentHashMap<String, Version>();
+  private final ConcurrentMap<String, ScriptException> _errors = new ConcurrentHashMap<String, ScriptException>();
+  private volatile boolean _started;
+
+  /**
+   * A published script together with the digest of the text it was compiled from.
+   */
+  private static final class Version {
+    final String _digest;
+    final GosuCompiledScript _script;
+
+    Version(String digest, GosuCompiledScript script) {
+      _digest = digest;
+      _script = script;
+    }
+  }
+
+  public ScriptRepository(GosuScriptEngine engine) throws IOException {
+    this(engine, null);
+  }
+
+  /**
+   * @param bindingTypes the bindings every script may read, with their types, as for
+   *                     {@link GosuScriptEngine#compile(String, Map)}; null if scripts read no bindings
+   */
+  public ScriptRepository(GosuScriptEngine engine, Map<String, Class<?>> bindingTypes) throws IOException {
+    _engine = engine;
+    _bindingTypes = bindingTypes == null ? null
+        : Collections.unmodifiableMap(new LinkedHashMap<String, Class<?>>(bindingTypes));
+    _extensions = new LinkedHashSet<String>(engine.getFactory().getExtensions());
+    _watchService = FileSystems.getDefault().newWatchService();
+  }
+
+  /**
+   * Compiles every script file under the directory, recursively, and starts watching it for changes.
+   */
+  public synchronized void watch(Path directory) throws IOException {
+    final Path root = directory.toAbsolutePath().normalize();
+    registerTree(root, root);
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        refresh(root, file);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    if (!_started) {
+      _started = true;
+      GosuRuntime.startDaemon("Gosu script repository", new Runnable() {
+        @Override
+        public void run() {
+          watchLoop();
+        }
+      });
+    }
+  }
+
+  /**
+   * @return the current version of the script, or null if there is no such script or it never compiled
+   */
+  public GosuCompiledScript get(String name) {
+    Version version = _scripts.get(name);
+    return version == null ? null : version._script;
+  }
+
+  /**
+   * Evaluates the current version of the script.
+   */
+  public Object eval(String name, Bindings bindings) throws ScriptException {
+    GosuCompiledScript script = get(name);
+    if (script == null) throw new ScriptException("No script named " + name);
+    return script.eval(bindings);
+  }
+
+  /**
+   * @return the names of the scripts currently published
+   */
+  public Set<String> getNames() {
+    return Collections.unmodifiableSet(_scripts.keySet());
+  }
+
+  /**
+   * @return why scripts failed to compile, by name, for each file whose latest content did not compile
+   */
+  public Map<String, ScriptException> getErrors() {
+    return Collections.unmodifiableMap(new HashMap<String, ScriptException>(_errors));
+  }
+
+  /**
+   * Stops watching; the scripts already published stay available.
+   */
+  @Override
+  public void close() throws IOException {
+    _watchService.close();
+  }
+
+  private void registerTree(final Path root, Path directory) throws IOException {
+    Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        WatchKey key = dir.register(_watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        _directories.put(key, dir);
+        _roots.put(key, root);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private void watchLoop() {
+    try {
+      while (true) {
+        Map<Path, Path> changed = new HashMap<Path, Path>();
+        WatchKey key = _watchService.take();
+        // keep collecting until nothing has happened for a while
+        while (key != null) {
+          collect(key, changed);
+          key = _watchService.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        for (Map.Entry<Path, Path> e : changed.entrySet()) {
+          refresh(e.getValue(), e.getKey());
+        }
+      }
+    } catch (InterruptedException e) {
+      // stop watching
+    } catch (ClosedWatchServiceException e) {
+      // closed
+    }
+  }
+
+  /**
+   * Adds the files an event key reports to {@code changed}, mapped to their root directory.
+   */
+  private void collect(WatchKey key, Map<Path, Path> changed) {
+    Path directory = _directories.get(key);
+    Path root = _roots.get(key);
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (directory == null) continue;
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        rescan(root, directory, changed);
+        continue;
+      }
+      Path path = directory.resolve((Path) event.context());
+      if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+        try {
+          registerTree(root, path);
+        } catch (IOException e) {
+          // the directory went away again
+        }
+        rescan(root, path, changed);
+        continue;
+      }
+      changed.put(path, root);
+    }
+    if (!key.reset()) {
+      _directories.remove(key);
+      _roots.remove(key);
+    }
+  }
+
+  private void rescan(final Path root, Path directory, final Map<Path, Path> changed) {
+    try {
+      Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+          changed.put(file, root);
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    } catch (IOException e) {
+      // the directory went away; its files are removed as their own events arrive
+    }
+  }
+
+  /**
+   * Brings the published version of one file up to date: removes it, or everything under it if it was a
+   * directory, if it is gone, recompiles it if its content changed, and leaves it alone otherwise.
+   * <p>
+   * Refreshes run one at a time, whether from {@link #watch} or the watching thread, so each one reads
+   * the file after the one before it published, and an older version can never be published last.
+   */
+  private synchronized void refresh(Path root, Path file) {
+    String name = nameOf(root, file);
+    try {
+      if (!Files.exists(file)) {
+        // a deleted directory takes everything under it along
+        removeUnder(name + "/");
+      }
+      if (!isScript(file)) return;
+      if (!Files.isRegularFile(file)) {
+        _scripts.remove(name);
+        _errors.remove(name);
+        return;
+      }
+      ScriptSource source = ScriptSource.read(file.toFile(), ScriptDigest.UTF8);
+      Version current = _scripts.get(name);
+      if (current != null && current._digest.equals(source.digest())) {
+        return;
+      }
+      GosuCompiledScript script = _engine.compile(source, file.toString(), _bindingTypes);
+      _scripts.put(name, new Version(source.digest(), script));
+      _errors.remove(name);
+    } catch (ScriptException e) {
+      _errors.put(name, e);
+    } catch (Throwable t) {
+      // anything else, Errors included, only costs this file its update rather than ending the watching
+      ScriptException e = new ScriptException(t.toString());
+      e.initCause(t);
+      _errors.put(name, e);
+    }
+  }
+
+  private void removeUnder(String prefix) {
+    for (String name : _scripts.keySet()) {
+      if (name.startsWith(prefix)) {
+        _scripts.remove(name);
+      }
+    }
+    for (String name : _errors.keySet()) {
+      if (name.startsWith(prefix)) {
+        _errors.remove(name);
+      }
+    }
+  }
+
+  private boolean isScript(Path file) {
+    String fileName = file.getFileName().toString();
+    int dot = fileName.lastIndexOf('.');
+    return dot >= 0 && _extensions.contains(fileName.substring(dot + 1));
+  }
+
+  private static String nameOf(Path root, Path file) {
+    return root.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+  }
+}
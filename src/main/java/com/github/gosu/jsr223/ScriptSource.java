@@ -0,0 +1,190 @@
+package com.github.gosu.jsr223;
+
+import javax.script.ScriptException;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * The text of a script together with its {@link ScriptDigest digest}. Sources read from a
+ * {@link Reader} or a file compute the digest while reading and only build the script's String when
+ * {@link #text()} is asked for, which a {@link ProgramCache} hit never does.
+ */
+abstract class ScriptSource {
+
+  /**
+   * @return the SHA-256 of the script's UTF-8 encoding, as {@link ScriptDigest#of} computes it
+   */
+  abstract String digest();
+
+  abstract String text();
+
+  static ScriptSource of(String script) {
+    return of(script, null);
+  }
+
+  /**
+   * @param digest the script's digest if already known, or null to compute it when needed
+   */
+  static ScriptSource of(final String script, final String digest) {
+    return new ScriptSource() {
+      private String _digest = digest;
+
+      @Override
+      String digest() {
+        if (_digest == null) {
+          _digest = ScriptDigest.of(script);
+        }
+        return _digest;
+      }
+
+      @Override
+      String text() {
+        return script;
+      }
+    };
+  }
+
+  /**
+   * Drains the reader into a per-thread buffer that grows as needed and is kept for the next read,
+   * hashing each chunk as it arrives. The returned source is only valid until the calling thread reads
+   * its next script, so callers that need the text later must call {@link #text()} before then.
+   */
+  static ScriptSource read(Reader reader) throws ScriptException {
+    ReadBuffer rb = READ_BUFFERS.get();
+    MessageDigest md = ScriptDigest.newDigest();
+    rb._encoder.reset();
+
+    char[] buf = rb._chars;
+    int length = 0;
+    int encoded = 0;
+    try {
+      for (int numRead; (numRead = reader.read(buf, length, buf.length - length)) >= 0; ) {
+        length += numRead;
+        encoded = digest(rb, md, buf, encoded, length, false);
+        if (length == buf.length) {
+          buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+      }
+    } catch (IOException e) {
+      throw new ScriptException(e);
+    }
+    digest(rb, md, buf, encoded, length, true);
+    if (buf.length <= MAX_RETAINED_CHARS) {
+      rb._chars = buf;
+    }
+
+    final char[] chars = buf;
+    final int count = length;
+    final String digest = ScriptDigest.toHex(md.digest());
+    return new ScriptSource() {
+      private String _text;
+
+      @Override
+      String digest() {
+        return digest;
+      }
+
+      @Override
+      String text() {
+        if (_text == null) {
+          _text = new String(chars, 0, count);
+        }
+        return _text;
+      }
+    };
+  }
+
+  /**
+   * Reads a file in one go. For UTF-8 files the digest is taken straight from the bytes and the file is
+   * only decoded if its text is needed; both come from the same bytes, so a file changing meanwhile can
+   * never leave a digest that does not match the text.
+   */
+  static ScriptSource read(File file, final Charset charset) throws ScriptException {
+    final byte[] bytes;
+    try {
+      bytes = Files.readAllBytes(file.toPath());
+    } catch (IOException e) {
+      throw new ScriptException(e);
+    }
+
+    if (!charset.equals(ScriptDigest.UTF8)) {
+      return of(new String(bytes, charset));
+    }
+
+    final String digest = ScriptDigest.toHex(ScriptDigest.newDigest().digest(bytes));
+    return new ScriptSource() {
+      private String _text;
+
+      @Override
+      String digest() {
+        return digest;
+      }
+
+      @Override
+      String text() {
+        if (_text == null) {
+          _text = new String(bytes, charset);
+        }
+        return _text;
+      }
+    };
+  }
+
+  /**
+   * Feeds the UTF-8 encoding of {@code chars[from, to)} into the digest.
+   *
+   * @return the index of the first char not yet consumed, which is short of {@code to} only when a
+   *         surrogate pair is split across reads
+   */
+  private static int digest(ReadBuffer rb, MessageDigest md, char[] chars, int from, int to, boolean endOfInput) {
+    CharBuffer in = CharBuffer.wrap(chars, from, to - from);
+    ByteBuffer out = rb._bytes;
+    CoderResult result;
+    do {
+      result = rb._encoder.encode(in, out, endOfInput);
+      drain(out, md);
+    } while (result.isOverflow());
+    if (endOfInput) {
+      while (rb._encoder.flush(out).isOverflow()) {
+        drain(out, md);
+      }
+      drain(out, md);
+    }
+    return in.position();
+  }
+
+  private static void drain(ByteBuffer out, MessageDigest md) {
+    out.flip();
+    md.update(out);
+    out.clear();
+  }
+
+  private static final int INITIAL_CHARS = 4096;
+  private static final int MAX_RETAINED_CHARS = 1 << 20;
+
+  private static final ThreadLocal<ReadBuffer> READ_BUFFERS = new ThreadLocal<ReadBuffer>() {
+    @Override
+    protected ReadBuffer initialValue() {
+      return new ReadBuffer();
+    }
+  };
+
+  private static final class ReadBuffer {
+    char[] _chars = new char[INITIAL_CHARS];
+    final ByteBuffer _bytes = ByteBuffer.allocate(8192);
+    // replaces unpaired surrogates the same way String.getBytes does, so both digests agree
+    final CharsetEncoder _encoder = ScriptDigest.UTF8.newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  }
+}
@@ -0,0 +1,289 @@
+package com.github.gosu.jsr223;
+
+import javax.script.ScriptContext;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Routes {@code System.out}, {@code System.err} and {@code System.in}, which Gosu's {@code print} and
+ * friends use, to the writers and reader of the {@link ScriptContext} being evaluated on the current
+ * thread. On first use the process-wide streams are replaced, once, by routing streams; a thread that is
+ * not evaluating a script still reaches the original streams, and a thread that is evaluating one never
+ * touches them, so concurrent scripts neither interleave output nor contend on the console's lock.
+ */
+final class StandardStreams {
+  private static final Object INSTALL_LOCK = new Object();
+  private static volatile boolean _installed;
+  private static RoutingPrintStream _out;
+  private static RoutingPrintStream _err;
+  private static RoutingInputStream _in;
+
+  private StandardStreams() {
+  }
+
+  /**
+   * Starts routing the current thread's standard streams to {@code context}, until the returned redirect
+   * is closed. Redirects nest.
+   */
+  static Redirect redirect(ScriptContext context) {
+    install();
+    return new Redirect(_out.route(context.getWriter()), _err.route(context.getErrorWriter()), _in.route(context.getReader()));
+  }
+
+  private static void install() {
+    if (_installed) return;
+    synchronized (INSTALL_LOCK) {
+      if (_installed) return;
+      _out = new RoutingPrintStream(System.out);
+      _err = new RoutingPrintStream(System.err);
+      _in = new RoutingInputStream(System.in);
+      System.setOut(_out);
+      System.setErr(_err);
+      System.setIn(_in);
+      _installed = true;
+    }
+  }
+
+  static final class Redirect {
+    private final Target _previousOut;
+    private final Target _previousErr;
+    private final Reader _previousIn;
+
+    Redirect(Target previousOut, Target previousErr, Reader previousIn) {
+      _previousOut = previousOut;
+      _previousErr = previousErr;
+      _previousIn = previousIn;
+    }
+
+    /**
+     * Flushes what the script wrote and restores the routing that was in place before.
+     */
+    void close() {
+      _out.restore(_previousOut);
+      _err.restore(_previousErr);
+      _in.restore(_previousIn);
+    }
+  }
+
+  /**
+   * A writer plus the lazily created byte adapter for output that arrives as bytes.
+   */
+  private static final class Target {
+    final Writer _writer;
+    OutputStream _bytes;
+    boolean _busy;
+
+    Target(Writer writer) {
+      _writer = writer;
+    }
+
+    OutputStream bytes() {
+      if (_bytes == null) {
+        _bytes = IOAdapters.adaptOutput(_writer, Charset.defaultCharset());
+      }
+      return _bytes;
+    }
+
+    void flush() {
+      try {
+        if (_bytes != null) {
+          _bytes.close();
+        }
+        _writer.flush();
+      } catch (IOException e) {
+        // nothing sensible to do; PrintStream swallows these too
+      }
+    }
+  }
+
+  private static final class RoutingPrintStream extends PrintStream {
+    private static final String NEWLINE = System.getProperty("line.separator");
+
+    private final PrintStream _fallback;
+    private final ThreadLocal<Target> _target = new ThreadLocal<Target>();
+
+    RoutingPrintStream(PrintStream fallback) {
+      super(fallback, true);
+      _fallback = fallback;
+    }
+
+    Target route(Writer writer) {
+      Target previous = _target.get();
+      _target.set(writer == null ? null : new Target(writer));
+      return previous;
+    }
+
+    void restore(Target previous) {
+      Target current = _target.get();
+      if (current != null) {
+        current.flush();
+      }
+      _target.set(previous);
+    }
+
+    /**
+     * @return the current thread's target, or null to use the fallback stream. A writer that itself
+     *         prints to System.out, such as the default context writer, falls back rather than recursing.
+     */
+    private Target acquire() {
+      Target target = _target.get();
+      if (target == null || target._busy) return null;
+      target._busy = true;
+      return target;
+    }
+
+    @Override
+    public void write(int b) {
+      Target target = acquire();
+      if (target == null) {
+        _fallback.write(b);
+        return;
+      }
+      try {
+        target.bytes().write(b);
+      } catch (IOException e) {
+        setError();
+      } finally {
+        target._busy = false;
+      }
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len) {
+      Target target = acquire();
+      if (target == null) {
+        _fallback.write(buf, off, len);
+        return;
+      }
+      try {
+        target.bytes().write(buf, off, len);
+      } catch (IOException e) {
+        setError();
+      } finally {
+        target._busy = false;
+      }
+    }
+
+    private void writeChars(String s, boolean newLine) {
+      Target target = acquire();
+      if (target == null) {
+        if (newLine) {
+          _fallback.println(s);
+        } else {
+          _fallback.print(s);
+        }
+        return;
+      }
+      try {
+        if (target._bytes != null) {
+          // keep any output that arrived as bytes in order
+          target._bytes.flush();
+        }
+        target._writer.write(s);
+        if (newLine) {
+          target._writer.write(NEWLINE);
+        }
+      } catch (IOException e) {
+        setError();
+      } finally {
+        target._busy = false;
+      }
+    }
+
+    @Override
+    public void print(String s) {
+      writeChars(String.valueOf(s), false);
+    }
+
+    @Override
+    public void print(Object obj) {
+      writeChars(String.valueOf(obj), false);
+    }
+
+    @Override
+    public void println(String s) {
+      writeChars(String.valueOf(s), true);
+    }
+
+    @Override
+    public void println(Object obj) {
+      writeChars(String.valueOf(obj), true);
+    }
+
+    @Override
+    public void println() {
+      writeChars("", true);
+    }
+
+    @Override
+    public void flush() {
+      Target target = acquire();
+      if (target == null) {
+        _fallback.flush();
+        return;
+      }
+      try {
+        if (target._bytes != null) {
+          target._bytes.flush();
+        }
+        target._writer.flush();
+      } catch (IOException e) {
+        setError();
+      } finally {
+        target._busy = false;
+      }
+    }
+  }
+
+  private static final class RoutingInputStream extends InputStream {
+    private final InputStream _fallback;
+    private final ThreadLocal<InputStream> _source = new ThreadLocal<InputStream>();
+    private final ThreadLocal<Reader> _reader = new ThreadLocal<Reader>();
+
+    RoutingInputStream(InputStream fallback) {
+      _fallback = fallback;
+    }
+
+    Reader route(Reader reader) {
+      Reader previous = _reader.get();
+      _reader.set(reader);
+      _source.set(null);
+      return previous;
+    }
+
+    void restore(Reader previous) {
+      route(previous);
+    }
+
+    private InputStream source() {
+      Reader reader = _reader.get();
+      if (reader == null) return _fallback;
+      InputStream source = _source.get();
+      if (source == null) {
+        source = IOAdapters.adaptInput(reader, Charset.defaultCharset());
+        _source.set(source);
+      }
+      return source;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return source().read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return source().read(b, off, len);
+    }
+
+    @Override
+    public int available() throws IOException {
+      return source().available();
+    }
+  }
+}
@@ -0,0 +1,209 @@
+package com.github.gosu.jsr223;
+
+import gw.lang.GosuShop;
+import gw.lang.parser.ISymbol;
+import gw.lang.parser.ISymbolTable;
+import gw.lang.reflect.IType;
+import gw.lang.reflect.TypeSystem;
+
+import javax.script.Bindings;
+import javax.script.ScriptContext;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Copies JSR 223 bindings into Gosu symbol tables. The Gosu type of each bound value is resolved once
+ * per Java class, and {@link GosuBindings} go further by keeping the types of all their entries until
+ * one changes. Every evaluation gets symbols of its own, which its script is free to assign to.
+ * <p>
+ * Global bindings that are {@link GosuBindings} are not even copied per evaluation: they keep a few
+ * {@link GlobalLayer symbol tables} with the globals loaded in their bottom scope, for evaluations on any
+ * thread to borrow, and only reload them when their {@link GosuBindings#getVersion() version} changes.
+ */
+final class SymbolMarshaller {
+  private static final ClassValue<IType> TYPES = new ClassValue<IType>() {
+    @Override
+    protected IType computeValue(Class<?> type) {
+      return TypeSystem.get(type);
+    }
+  };
+
+  /**
+   * A symbol table over a snapshot of global bindings, with an engine scope on top that an evaluation
+   * fills and empties again. The globals are symbols of the layer's own, so that a script assigning to
+   * one only affects this layer, which is then {@link #isWrittenTo() discarded}. One
+   * evaluation uses a layer at a time.
+   */
+  static final class GlobalLayer {
+    final ISymbolTable _symbolTable = GosuShop.createSymbolTable();
+    final long _version;
+    private final ISymbol[] _symbols;
+    private final Object[] _values;
+
+    GlobalLayer(GosuBindings.Snapshot globals) {
+      _symbols = new ISymbol[globals._names.length];
+      _values = globals._values;
+      for (int i = 0; i < _symbols.length; i++) {
+        _symbols[i] = GosuShop.createSymbol(globals._names[i], globals._types[i], _values[i]);
+        _symbolTable.putSymbol(_symbols[i]);
+      }
+      _symbolTable.pushScope();
+      _version = globals._version;
+    }
+
+    /**
+     * @return whether a script assigned to one of the globals
+     */
+    boolean isWrittenTo() {
+      for (int i = 0; i < _symbols.length; i++) {
+        if (_symbols[i].getValue() != _values[i]) return true;
+      }
+      return false;
+    }
+  }
+
+  /**
+   * The symbol table of one evaluation, to be {@link #release() released} once the evaluation is done.
+   */
+  static final class EvalSymbols {
+    final ISymbolTable _symbolTable;
+    // null unless the table is one of the globals' layers
+    private final GosuBindings _globals;
+    private final GlobalLayer _layer;
+
+    EvalSymbols(ISymbolTable symbolTable, GosuBindings globals, GlobalLayer layer) {
+      _symbolTable = symbolTable;
+      _globals = globals;
+      _layer = layer;
+    }
+
+    /**
+     * Empties the engine scope of a layer and hands it back to its globals.
+     */
+    void release() {
+      if (_layer == null) return;
+      _symbolTable.popScope();
+      _symbolTable.pushScope();
+      _globals.releaseLayer(_layer);
+    }
+  }
+
+  private SymbolMarshaller() {
+  }
+
+  /**
+   * @return the Gosu type of a bound value; null is typed as Object
+   */
+  static IType typeOf(Object value) {
+    return TYPES.get(value == null ? Object.class : value.getClass());
+  }
+
+  /**
+   * Keys such as {@link javax.script.ScriptEngine#FILENAME} or {@link GosuScriptEngine#PROGRAM_VARS}
+   * configure the engine rather than name values for the script, and could never be referenced from
+   * Gosu anyway; they are left out of symbol tables.
+   */
+  static boolean isSymbolName(String name) {
+    return name.indexOf('.') < 0;
+  }
+
+  /**
+   * @return the Gosu types of declared bindings, in declaration order, or null if there are no declarations
+   */
+  static Map<String, IType> typesOf(Map<String, Class<?>> declaredClasses) {
+    if (declaredClasses == null) return null;
+
+    Map<String, IType> types = new LinkedHashMap<String, IType>();
+    for (Map.Entry<String, Class<?>> e : declaredClasses.entrySet()) {
+      if (!isSymbolName(e.getKey())) throw new IllegalArgumentException("Not a valid symbol name: " + e.getKey());
+      types.put(e.getKey(), TYPES.get(e.getValue()));
+    }
+    return Collections.unmodifiableMap(types);
+  }
+
+  /**
+   * Builds the symbol table for one evaluation. Declared bindings keep their declared type whatever the
+   * class of their current value, and are present, as null, even when unbound.
+   *
+   * @param declaredTypes may be null
+   */
+  static ISymbolTable symbolTableFor(ScriptContext context, Map<String, IType> declaredTypes) {
+    ISymbolTable result = GosuShop.createSymbolTable();
+
+    if (context != null) {
+      loadSymbolTable(context, result, declaredTypes);
+    }
+    addDeclared(result, declaredTypes);
+
+    return result;
+  }
+
+  /**
+   * Puts a symbol of its declared type on top for each declared binding that is either unbound or only
+   * found, with another type, in a lower scope.
+   */
+  private static void addDeclared(ISymbolTable symbolTable, Map<String, IType> declaredTypes) {
+    if (declaredTypes == null) return;
+    for (Map.Entry<String, IType> e : declaredTypes.entrySet()) {
+      ISymbol symbol = symbolTable.getSymbol(e.getKey());
+      if (symbol == null) {
+        symbolTable.putSymbol(GosuShop.createSymbol(e.getKey(), e.getValue(), null));
+      } else if (!e.getValue().equals(symbol.getType())) {
+        symbolTable.putSymbol(GosuShop.createSymbol(e.getKey(), e.getValue(), symbol.getValue()));
+      }
+    }
+  }
+
+  /**
+   * Like {@link #symbolTableFor}, for a single evaluation. When the global bindings are
+   * {@link GosuBindings} one of their layers is reused, typed by the globals' values alone whatever the
+   * script declares, and only the engine scope is loaded.
+   */
+  static EvalSymbols symbolsForEval(ScriptContext context, Map<String, IType> declaredTypes) {
+    Bindings globalBindings = context == null ? null : context.getBindings(ScriptContext.GLOBAL_SCOPE);
+    if (!(globalBindings instanceof GosuBindings)) {
+      return new EvalSymbols(symbolTableFor(context, declaredTypes), null, null);
+    }
+
+    GosuBindings globals = (GosuBindings) globalBindings;
+    GlobalLayer layer = globals.acquireLayer();
+    EvalSymbols result = new EvalSymbols(layer._symbolTable, globals, layer);
+    try {
+      Bindings bindings = context.getBindings(ScriptContext.ENGINE_SCOPE);
+      if (bindings != null) {
+        loadSymbols(layer._symbolTable, bindings, declaredTypes);
+      }
+      addDeclared(layer._symbolTable, declaredTypes);
+    } catch (RuntimeException e) {
+      result.release();
+      throw e;
+    }
+    return result;
+  }
+
+  private static void loadSymbolTable(ScriptContext context, ISymbolTable result, Map<String, IType> declaredTypes) {
+    Bindings globalBindings = context.getBindings(ScriptContext.GLOBAL_SCOPE);
+    if (globalBindings != null) {
+      loadSymbols(result, globalBindings, declaredTypes);
+      result.pushScope();
+    }
+    Bindings bindings = context.getBindings(ScriptContext.ENGINE_SCOPE);
+    if (bindings != null) {
+      loadSymbols(result, bindings, declaredTypes);
+    }
+  }
+
+  static void loadSymbols(ISymbolTable result, Bindings bindings, Map<String, IType> declaredTypes) {
+    if (bindings instanceof GosuBindings) {
+      ((GosuBindings) bindings).loadSymbols(result, declaredTypes);
+      return;
+    }
+    for (Map.Entry<String, Object> e : bindings.entrySet()) {
+      if (!isSymbolName(e.getKey())) continue;
+      Object v = e.getValue();
+      IType type = declaredTypes == null ? null : declaredTypes.get(e.getKey());
+      result.putSymbol(GosuShop.createSymbol(e.getKey(), type == null ? typeOf(v) : type, v));
+    }
+  }
+}
@@ -0,0 +1,27 @@
+package com.github.gosu.jsr223;
+
+/**
+ * How the program vars a script leaves behind are handed back to the caller after an evaluation.
+ *
+ * @see GosuScriptEngine#setWriteBackMode
+ * @see GosuScriptEngine#WRITE_BACK_MODE
+ */
+public enum WriteBackMode {
+  /**
+   * Every program var is read and put into the context's ENGINE_SCOPE bindings. The default.
+   */
+  EAGER,
+
+  /**
+   * Nothing is copied. Instead a read-only {@link javax.script.Bindings} view is put into ENGINE_SCOPE
+   * under {@link GosuScriptEngine#PROGRAM_VARS}; it reads a var from the program instance only when the
+   * caller asks for it.
+   */
+  LAZY,
+
+  /**
+   * Program vars are discarded, for fire-and-forget evaluations that only care about side effects or
+   * the return value.
+   */
+  NONE
+}
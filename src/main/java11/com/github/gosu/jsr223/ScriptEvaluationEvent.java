@@ -0,0 +1,46 @@
+package com.github.gosu.jsr223;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event for one profiled evaluation or invocation, committed when it has finished.
+ * Compiled for Java 11 apart from the rest of the engine, and only looked up, reflectively, by a
+ * {@link ScriptProfiler} that found Flight Recorder on the JVM.
+ */
+@Name("com.github.gosu.jsr223.ScriptEvaluation")
+@Label("Gosu Script Evaluation")
+@Category("Gosu")
+final class ScriptEvaluationEvent extends jdk.jfr.Event {
+  @Label("Script")
+  String scriptId;
+
+  @Label("Operation")
+  String operation;
+
+  @Label("Wall Time")
+  @Timespan(Timespan.NANOSECONDS)
+  long wallTime;
+
+  @Label("CPU Time")
+  @Timespan(Timespan.NANOSECONDS)
+  long cpuTime;
+
+  @Label("Allocated")
+  @DataAmount(DataAmount.BYTES)
+  long allocated;
+
+  static void emit(String scriptId, String operation, long wallNanos, long cpuNanos, long allocatedBytes) {
+    ScriptEvaluationEvent event = new ScriptEvaluationEvent();
+    if (!event.isEnabled()) return;
+    event.scriptId = scriptId;
+    event.operation = operation;
+    event.wallTime = wallNanos;
+    event.cpuTime = cpuNanos;
+    event.allocated = allocatedBytes;
+    event.commit();
+  }
+}
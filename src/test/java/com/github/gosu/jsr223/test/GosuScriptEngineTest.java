@@ -1,20 +1,72 @@
 package com.github.gosu.jsr223.test;
 
 
+import com.github.gosu.jsr223.BatchResultHandler;
+import com.github.gosu.jsr223.CompileResult;
+import com.github.gosu.jsr223.GosuBindings;
+import com.github.gosu.jsr223.GosuCompiledScript;
+import com.github.gosu.jsr223.GosuExpression;
+import com.github.gosu.jsr223.GosuScriptEngine;
 import com.github.gosu.jsr223.GosuScriptEngineFactory;
+import com.github.gosu.jsr223.MetricsRecorder;
+import com.github.gosu.jsr223.ParserPool;
+import com.github.gosu.jsr223.ProgramCache;
+import com.github.gosu.jsr223.ScriptMetrics;
+import com.github.gosu.jsr223.ScriptProfile;
+import com.github.gosu.jsr223.ScriptProfiler;
+import com.github.gosu.jsr223.ScriptRepository;
+import com.github.gosu.jsr223.WriteBackMode;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
 import javax.script.Invocable;
 import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+import javax.script.SimpleScriptContext;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
 
 import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
 
 /**
  * Junit4 test to test the GosuScriptEngine.
@@ -72,12 +124,21 @@ public class GosuScriptEngineTest {
 
     @Test
     public void executeScriptFromReader() throws Exception {
-      // eventually want to do this properly, by redirecting the Writer that is part of the ScriptContext
       FileWriter out = new FileWriter("hello.gs");
       out.write("print(\"Hello from Gosu\")");
       out.close();
-      Object ret = engine.eval(new java.io.FileReader("hello.gs"));
+
+      // script output goes to the Writer that is part of the ScriptContext
+      ScriptContext context = new SimpleScriptContext();
+      context.setBindings(engine.createBindings(), ScriptContext.ENGINE_SCOPE);
+      StringWriter printed = new StringWriter();
+      context.setWriter(printed);
+
+      GosuScriptEngine redirecting = (GosuScriptEngine) engine.getFactory().getScriptEngine();
+      redirecting.setRedirectStandardStreams(true);
+      Object ret = redirecting.eval(new java.io.FileReader("hello.gs"), context);
       System.out.println(ret);
+      assertThat(printed.toString().trim()).isEqualTo("Hello from Gosu");
     }
 
     @Test
@@ -130,6 +191,18 @@ public class GosuScriptEngineTest {
       System.out.println(result);
     }
 
+    @Test
+    public void testInvokeMethodOnAClassThatCannotBeMadeAccessible() throws Exception {
+      // a private class of java.util, which Java 9+ refuses to open up to reflection
+      List<Integer> list = Collections.unmodifiableList(Arrays.asList(1, 2));
+
+      try {
+        assertThat(((Invocable) engine).invokeMethod(list, "size")).isEqualTo(2);
+      } catch (ScriptException e) {
+        // the method could not be called, and the call says so like any failed call
+      }
+    }
+
     @Test
     public void testInvokeFunctionViaInterface() throws Exception {
       // JavaScript code in a String
@@ -207,4 +280,913 @@ public class GosuScriptEngineTest {
       // why doesn't this test expose assertion handling -- do we need to import something?
       assertThat(writer.toString()).as("Should have produced result 'helloworld'").isEqualTo("helloworld");
     }
+
+    @Test
+    public void testRepeatedEvalReusesParsedProgram() throws Exception {
+      GosuScriptEngineFactory factory = new GosuScriptEngineFactory();
+      ScriptEngine fresh = factory.getScriptEngine();
+      ProgramCache cache = factory.getProgramCache();
+      String script = "6 * 7";
+      fresh.eval(script, new SimpleBindings());
+
+      Object ret = fresh.eval(script, new SimpleBindings());
+
+      assertThat(cache.getHits()).as("Second eval of the same text should hit the cache").isEqualTo(1);
+      assertThat(ret).isEqualTo(42);
+    }
+
+    public static class Token {
+      @Override
+      public String toString() {
+        return "token";
+      }
+    }
+
+    @Test
+    public void testSameNamedClassesFromOtherLoadersGetTheirOwnPrograms() throws Exception {
+      GosuScriptEngineFactory factory = new GosuScriptEngineFactory();
+      ScriptEngine fresh = factory.getScriptEngine();
+      ProgramCache cache = factory.getProgramCache();
+      // loads its own copy of Token rather than asking the application class loader
+      URLClassLoader other = new URLClassLoader(new URL[] {Token.class.getProtectionDomain().getCodeSource().getLocation()}, null);
+      Class<?> otherToken = other.loadClass(Token.class.getName());
+      assertThat(otherToken).isNotSameAs(Token.class);
+
+      Bindings bindings = new SimpleBindings();
+      bindings.put("token", new Token());
+      assertThat(fresh.eval("token.toString()", bindings)).isEqualTo("token");
+      long hits = cache.getHits();
+
+      bindings.put("token", otherToken.newInstance());
+      assertThat(fresh.eval("token.toString()", bindings)).isEqualTo("token");
+      assertThat(cache.getHits()).as("A program parsed against one Token must not serve the other").isEqualTo(hits);
+      assertThat(cache.size()).isEqualTo(2);
+      other.close();
+    }
+
+    @Test
+    public void testParsersAreReused() throws Exception {
+      GosuScriptEngineFactory factory = new GosuScriptEngineFactory();
+      ParserPool pool = factory.getParserPool();
+      Compilable compiler = (Compilable) factory.getScriptEngine();
+      compiler.compile("1 + 2");
+      long created = pool.getCreated();
+
+      compiler.compile("3 + 4");
+      try {
+        compiler.compile("3 +");
+        fail("Should not compile");
+      } catch (ScriptException e) {
+        // a parse error leaves the parser fit for reuse
+      }
+      compiler.compile("5 + 6");
+
+      assertThat(pool.getCreated()).as("A returned parser should serve the next compile").isEqualTo(created);
+      assertThat(pool.getInUse()).isEqualTo(0);
+      assertThat(pool.getDiscarded()).isEqualTo(0);
+
+      pool.setMaxIdle(0);
+      compiler.compile("7 + 8");
+      assertThat(pool.getCreated()).as("An empty pool creates a parser per parse").isEqualTo(created + 1);
+    }
+
+    @Test
+    public void testCacheHitMarshalsBindingsOnlyToEvaluate() throws Exception {
+      ScriptEngine fresh = new GosuScriptEngineFactory().getScriptEngine();
+      final AtomicInteger marshalled = new AtomicInteger();
+      Bindings bindings = new SimpleBindings() {
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+          marshalled.incrementAndGet();
+          return super.entrySet();
+        }
+      };
+      bindings.put("n", 6);
+
+      assertThat(fresh.eval("n * 7", bindings)).isEqualTo(42);
+      int parsing = marshalled.getAndSet(0);
+      assertThat(fresh.eval("n * 7", bindings)).isEqualTo(42);
+
+      assertThat(marshalled.get()).as("A cached program needs no symbol table to parse against").isEqualTo(parsing - 1);
+    }
+
+    @Test
+    public void testFactoryReportsMultithreaded() throws Exception {
+      assertThat(engine.getFactory().getParameter("THREADING")).isEqualTo("MULTITHREADED");
+      assertThat(engine.getFactory().getParameter(ScriptEngine.NAME)).isEqualTo("gosu");
+    }
+
+    @Test
+    public void testInvokeFunctionOnCompiledScript() throws Exception {
+      CompiledScript compiled = ((Compilable) engine).compile("function twice(s : String) : String { return s + s }");
+
+      // the compiled script is invocable on its own, independently of what the engine evaluates next
+      engine.eval("function twice(s : String) : String { return s }");
+      Object result = ((Invocable) compiled).invokeFunction("twice", "ab");
+
+      assertThat(result).isEqualTo("abab");
+    }
+
+    @Test
+    public void testProgramVarsDoNotLeakBetweenEvaluations() throws Exception {
+      CompiledScript compiled = ((Compilable) engine).compile("var count : int\ncount = count + 1\nreturn count");
+
+      assertThat(compiled.eval(new SimpleBindings())).isEqualTo(1);
+      assertThat(compiled.eval(new SimpleBindings())).as("Each evaluation should get its own program instance").isEqualTo(1);
+    }
+
+    @Test
+    public void testInvokeFunctionPicksMatchingOverload() throws Exception {
+      engine.eval("function describe(o : Object) : String { return \"object\" }\n" +
+          "function describe(s : String) : String { return \"string\" }\n" +
+          "function describe(i : int) : String { return \"int\" }");
+
+      Invocable inv = (Invocable) engine;
+
+      assertThat(inv.invokeFunction("describe", "x")).isEqualTo("string");
+      assertThat(inv.invokeFunction("describe", 1)).isEqualTo("int");
+      assertThat(inv.invokeFunction("describe", new Object())).isEqualTo("object");
+    }
+
+    @Test
+    public void testInvokeFunctionWidensBoxedPrimitives() throws Exception {
+      engine.eval("function twice(n : long) : long { return n * 2 }\n" +
+          "function half(d : double) : double { return d / 2 }");
+
+      Invocable inv = (Invocable) engine;
+
+      assertThat(inv.invokeFunction("twice", 21)).isEqualTo(42L);
+      assertThat(inv.invokeFunction("half", 3)).isEqualTo(1.5d);
+      assertThat(inv.invokeFunction("half", 3L)).isEqualTo(1.5d);
+    }
+
+    @Test
+    public void testGetInterfaceBindsScriptFunctions() throws Exception {
+      engine.eval("function call() : Object { return \"called\" }");
+
+      Callable<?> callable = ((Invocable) engine).getInterface(Callable.class);
+
+      assertThat(callable.call()).isEqualTo("called");
+      assertThat(((Invocable) engine).getInterface(Comparable.class))
+          .as("Interfaces the script does not implement should not be bound").isNull();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testGetInterfaceRunsInheritedDefaultMethods() throws Exception {
+      engine.eval("function compare(a : Object, b : Object) : int { return (a as Integer) - (b as Integer) }");
+
+      Comparator<Object> comparator = ((Invocable) engine).getInterface(Comparator.class);
+      List<Object> values = new ArrayList<Object>(Arrays.<Object>asList(2, 3, 1));
+      Collections.sort(values, comparator.reversed());
+
+      assertThat(values).isEqualTo(Arrays.<Object>asList(3, 2, 1));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testGetInterfaceRunsDefaultMethodsOfJdkInterfaces() throws Exception {
+      CompiledScript script = ((Compilable) engine).compile("function test(o : Object) : boolean { return (o as Integer) > 2 }");
+
+      Predicate<Object> overTwo = ((GosuCompiledScript) script).getInterface(Predicate.class);
+
+      assertThat(overTwo.test(3)).isTrue();
+      assertThat(overTwo.negate().test(3)).as("Predicate.negate is a default method of java.base").isFalse();
+      assertThat(overTwo.and(overTwo.negate()).test(3)).isFalse();
+    }
+
+    @Test
+    public void testEngineBindingsTrackChanges() throws Exception {
+      Bindings bindings = engine.createBindings();
+      assertThat(bindings).isInstanceOf(GosuBindings.class);
+
+      long version = ((GosuBindings) bindings).getVersion();
+      bindings.put("n", 20);
+      bindings.put("missing", null);
+
+      assertThat(((GosuBindings) bindings).getVersion()).isEqualTo(version + 2);
+      assertThat(engine.eval("missing == null ? n + 1 : n", bindings)).isEqualTo(21);
+    }
+
+    @Test
+    public void testAssigningToBindingDoesNotLeakIntoNextEval() throws Exception {
+      Bindings bindings = engine.createBindings();
+      bindings.put("n", 20);
+
+      assertThat(engine.eval("n = n + 1\nreturn n", bindings)).isEqualTo(21);
+      assertThat(engine.eval("n", bindings)).as("Symbols are recreated from the entry once written to").isEqualTo(20);
+    }
+
+    @Test
+    public void testAssigningToBindingIsNotSeenByConcurrentEvals() throws Exception {
+      final Bindings bindings = engine.createBindings();
+      bindings.put("n", 1);
+      Map<String, Class<?>> types = Collections.<String, Class<?>>singletonMap("n", Integer.class);
+      final CompiledScript writer = ((GosuScriptEngine) engine).compile("n = 2\nreturn n", types);
+      final CompiledScript reader = ((GosuScriptEngine) engine).compile("n", types);
+
+      ExecutorService threads = Executors.newFixedThreadPool(2);
+      try {
+        Future<Object> written = threads.submit(new Callable<Object>() {
+          @Override
+          public Object call() throws Exception {
+            for (int i = 0; i < 2000; i++) {
+              if (!Integer.valueOf(2).equals(writer.eval(bindings))) return i;
+            }
+            return "ok";
+          }
+        });
+        Future<Object> read = threads.submit(new Callable<Object>() {
+          @Override
+          public Object call() throws Exception {
+            for (int i = 0; i < 2000; i++) {
+              if (!Integer.valueOf(1).equals(reader.eval(bindings))) return i;
+            }
+            return "ok";
+          }
+        });
+
+        assertThat(written.get()).isEqualTo("ok");
+        assertThat(read.get()).as("A reader should never see another evaluation's assignment").isEqualTo("ok");
+      } finally {
+        threads.shutdown();
+      }
+    }
+
+    @Test
+    public void testWriteBackModes() throws Exception {
+      String script = "var greeting = \"hi\"";
+
+      Bindings lazy = engine.createBindings();
+      lazy.put(GosuScriptEngine.WRITE_BACK_MODE, WriteBackMode.LAZY);
+      engine.eval(script, lazy);
+      assertThat(lazy.get("greeting")).as("Lazy mode should not copy vars").isNull();
+      assertThat(((Bindings) lazy.get(GosuScriptEngine.PROGRAM_VARS)).get("greeting")).isEqualTo("hi");
+
+      Bindings none = engine.createBindings();
+      none.put(GosuScriptEngine.WRITE_BACK_MODE, "none");
+      engine.eval(script, none);
+      assertThat(none.get("greeting")).isNull();
+      assertThat(none.get(GosuScriptEngine.PROGRAM_VARS)).isNull();
+    }
+
+    @Test
+    public void testCompileAgainstDeclaredBindingTypes() throws Exception {
+      Map<String, Class<?>> types = new HashMap<String, Class<?>>();
+      types.put("amount", Number.class);
+      CompiledScript compiled = ((GosuScriptEngine) engine).compile("amount == null ? -1 : amount.intValue()", types);
+
+      Bindings bindings = engine.createBindings();
+      bindings.put("amount", 3);
+      assertThat(compiled.eval(bindings)).isEqualTo(3);
+
+      bindings.put("amount", 4.5d);
+      assertThat(compiled.eval(bindings)).isEqualTo(4);
+
+      assertThat(compiled.eval(engine.createBindings())).as("Unbound declared names read as null").isEqualTo(-1);
+    }
+
+    @Test
+    public void testWarmUpPreloadsTypesAndScripts() throws Exception {
+      GosuScriptEngineFactory factory = new GosuScriptEngineFactory();
+
+      factory.warmUp(Collections.singletonList("com.github.gosu.jsr223.test.HelloWorld"),
+                     Collections.singletonList("20 + 22")).get();
+
+      assertThat(factory.isReady()).isTrue();
+      assertThat(factory.getProgramCache().size()).isEqualTo(1);
+      long hits = factory.getProgramCache().getHits();
+      assertThat(factory.getScriptEngine().eval("20 + 22", new SimpleBindings())).isEqualTo(42);
+      assertThat(factory.getProgramCache().getHits()).as("The warmed-up script should not be parsed again").isEqualTo(hits + 1);
+    }
+
+    @Test
+    public void testWarmUpReportsUnknownTypesButLoadsTheRest() throws Exception {
+      GosuScriptEngineFactory factory = new GosuScriptEngineFactory();
+
+      try {
+        factory.warmUp(Arrays.asList("no.such.Type", "com.github.gosu.jsr223.test.HelloWorld"),
+                       Collections.singletonList("1 + 1")).get();
+        fail("An unknown type should fail the warm-up");
+      } catch (ExecutionException e) {
+        assertThat(e.getCause()).isInstanceOf(ClassNotFoundException.class);
+      }
+      assertThat(factory.getProgramCache().size()).isEqualTo(1);
+    }
+
+    @Test
+    public void testWarmUpOnCreationFromSystemProperties() throws Exception {
+      System.setProperty(GosuScriptEngineFactory.WARM_UP_PROPERTY, "true");
+      System.setProperty(GosuScriptEngineFactory.WARM_UP_TYPES_PROPERTY, "com.github.gosu.jsr223.test.HelloWorld, java.util.List");
+      GosuScriptEngineFactory factory;
+      try {
+        factory = new GosuScriptEngineFactory();
+      } finally {
+        System.clearProperty(GosuScriptEngineFactory.WARM_UP_PROPERTY);
+        System.clearProperty(GosuScriptEngineFactory.WARM_UP_TYPES_PROPERTY);
+      }
+
+      assertThat(factory.getStartupWarmUp()).isNotNull();
+      factory.getStartupWarmUp().get();
+      assertThat(factory.isReady()).isTrue();
+      assertThat(new GosuScriptEngineFactory().getStartupWarmUp()).isNull();
+    }
+
+    @Test
+    public void testPersistentCacheRestoresScripts() throws Exception {
+      File dir = Files.createTempDirectory("gosu-program-cache").toFile();
+      try {
+        GosuScriptEngineFactory before = new GosuScriptEngineFactory();
+        before.setPersistentCacheDirectory(dir);
+        before.getScriptEngine().eval("\"persisted\".length()");
+
+        // a new factory stands in for a restarted JVM
+        GosuScriptEngineFactory after = new GosuScriptEngineFactory();
+        after.setPersistentCacheDirectory(dir);
+        int restored = after.restorePersistentCache().get();
+
+        assertThat(restored).isEqualTo(1);
+        assertThat(after.getProgramCache().size()).isEqualTo(restored);
+      } finally {
+        deleteRecursively(dir);
+      }
+    }
+
+    @Test
+    public void testPersistentCacheKeepsItsMaximum() throws Exception {
+      File dir = Files.createTempDirectory("gosu-program-cache").toFile();
+      try {
+        GosuScriptEngineFactory before = new GosuScriptEngineFactory();
+        before.setPersistentCacheDirectory(dir, 2);
+        for (int i = 0; i < 4; i++) {
+          before.getScriptEngine().eval(i + " * 2");
+        }
+
+        GosuScriptEngineFactory after = new GosuScriptEngineFactory();
+        after.setPersistentCacheDirectory(dir, 2);
+
+        assertThat(after.restorePersistentCache().get()).isEqualTo(2);
+      } finally {
+        deleteRecursively(dir);
+      }
+    }
+
+    @Test
+    public void testCompileAllReportsEachScript() throws Exception {
+      Map<String, Reader> scripts = new LinkedHashMap<String, Reader>();
+      scripts.put("a", new StringReader("2 * 21"));
+      scripts.put("b", new StringReader("2 * 21"));
+      scripts.put("broken", new StringReader("this is not gosu"));
+
+      Map<String, CompileResult> results = ((GosuScriptEngine) new GosuScriptEngineFactory().getScriptEngine()).compileAll(scripts);
+
+      assertThat(results.get("a").isSuccess()).isTrue();
+      assertThat(results.get("b").getScript()).as("Identical sources should be compiled once").isSameAs(results.get("a").getScript());
+      assertThat(results.get("a").getScript().eval(new SimpleBindings())).isEqualTo(42);
+      assertThat(results.get("broken").isSuccess()).isFalse();
+      assertThat(results.get("broken").getError()).isNotNull();
+    }
+
+    @Test
+    public void testReaderAndFileSourcesShareCachedPrograms() throws Exception {
+      GosuScriptEngineFactory factory = new GosuScriptEngineFactory();
+      GosuScriptEngine fresh = (GosuScriptEngine) factory.getScriptEngine();
+      ProgramCache cache = factory.getProgramCache();
+      String script = "\"caf\u00e9\".length() * 10";
+      assertThat(fresh.eval(script, new SimpleBindings())).isEqualTo(40);
+
+      assertThat(fresh.eval(new StringReader(script), new SimpleBindings())).isEqualTo(40);
+
+      File file = new File("target/cached-script.gsp");
+      file.getParentFile().mkdirs();
+      Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+      out.write(script);
+      out.close();
+      assertThat(fresh.eval(file, new SimpleBindings())).isEqualTo(40);
+
+      assertThat(cache.getHits()).as("Reader and file sources should hash to the same key").isEqualTo(2);
+      assertThat(cache.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void testTimeoutStopsRunawayScript() throws Exception {
+      CompiledScript script = ((Compilable) new GosuScriptEngineFactory().getScriptEngine())
+          .compile("while (!Thread.currentThread().isInterrupted()) {}");
+      ScriptContext context = new SimpleScriptContext();
+      context.setAttribute(GosuScriptEngine.TIMEOUT_MILLIS, 100, ScriptContext.ENGINE_SCOPE);
+
+      try {
+        script.eval(context);
+        fail("The loop should have been stopped");
+      } catch (ScriptException e) {
+        assertThat(e.getMessage()).contains("timed out");
+      }
+    }
+
+    @Test
+    public void testTimeoutReleasesCallerOfNonCooperativeScript() throws Exception {
+      GosuScriptEngineFactory factory = new GosuScriptEngineFactory();
+      // never checks for interruption, so it cannot be stopped, only abandoned until it ends by itself
+      CompiledScript script = ((GosuScriptEngine) factory.getScriptEngine()).compile(
+          "while (!release.get()) {}\n" +
+          "return \"finished\"", Collections.<String, Class<?>>singletonMap("release", AtomicBoolean.class));
+      AtomicBoolean release = new AtomicBoolean();
+      ScriptContext context = new SimpleScriptContext();
+      context.setAttribute("release", release, ScriptContext.ENGINE_SCOPE);
+      context.setAttribute(GosuScriptEngine.TIMEOUT_MILLIS, 100, ScriptContext.ENGINE_SCOPE);
+      // counted across factories
+      int abandoned = factory.getAbandonedEvaluations();
+
+      try {
+        script.eval(context);
+        fail("The caller should have been released at the timeout");
+      } catch (ScriptException e) {
+        assertThat(e.getMessage()).contains("timed out");
+      }
+      assertThat(factory.getAbandonedEvaluations()).as("Released while the script still runs").isEqualTo(abandoned + 1);
+
+      release.set(true);
+      while (factory.getAbandonedEvaluations() > abandoned) {
+        Thread.sleep(50);
+      }
+      assertThat(factory.getAbandonedEvaluations()).as("The worker is freed once the script ends").isEqualTo(abandoned);
+    }
+
+    @Test
+    public void testEvalAllAsyncFansOutOverBindings() throws Exception {
+      GosuScriptEngine gosuEngine = (GosuScriptEngine) new GosuScriptEngineFactory().getScriptEngine();
+      CompiledScript script = gosuEngine.compile("x * 2", Collections.<String, Class<?>>singletonMap("x", Integer.class));
+      // far more than there are workers for limited evaluations
+      int count = 1000;
+      List<Bindings> bindings = new ArrayList<Bindings>();
+      for (int i = 0; i < count; i++) {
+        Bindings b = gosuEngine.createBindings();
+        b.put("x", i);
+        bindings.add(b);
+      }
+
+      List<CompletableFuture<Object>> results = gosuEngine.evalAllAsync(script, bindings);
+
+      assertThat(results).hasSize(count);
+      for (int i = 0; i < count; i++) {
+        assertThat(results.get(i).get()).isEqualTo(i * 2);
+      }
+    }
+
+    @Test
+    public void testInvokeFunctionAsync() throws Exception {
+      GosuScriptEngine fresh = (GosuScriptEngine) new GosuScriptEngineFactory().getScriptEngine();
+      fresh.eval("function add(a : int, b : int) : int { return a + b }");
+
+      assertThat(fresh.invokeFunctionAsync("add", 2, 3).get()).isEqualTo(5);
+    }
+
+    @Test
+    public void testInvokeFunctionAsyncKeepsTheEngineLimits() throws Exception {
+      GosuScriptEngine limited = (GosuScriptEngine) new GosuScriptEngineFactory().getScriptEngine();
+      limited.setTimeoutMillis(100);
+      limited.eval("function spin() : int { while (!Thread.currentThread().isInterrupted()) {} return 0 }");
+
+      try {
+        limited.invokeFunctionAsync("spin").get();
+        fail("The invocation should have timed out");
+      } catch (ExecutionException e) {
+        assertThat(e.getCause()).isInstanceOf(ScriptException.class);
+        assertThat(e.getCause().getMessage()).contains("timed out");
+      }
+    }
+
+    @Test
+    public void testEvalBatchStreamsResults() throws Exception {
+      Map<String, Class<?>> types = new HashMap<String, Class<?>>();
+      types.put("x", Integer.class);
+      types.put("y", Integer.class);
+      GosuCompiledScript script = ((GosuScriptEngine) engine).compile("x + y", types);
+      final List<Object> results = new ArrayList<Object>();
+      BatchResultHandler handler = new BatchResultHandler() {
+        @Override
+        public void onResult(Bindings row, Object result) {
+          results.add(result);
+        }
+
+        @Override
+        public void onError(Bindings row, ScriptException error) {
+          fail(error.getMessage());
+        }
+      };
+
+      List<Bindings> rows = new ArrayList<Bindings>();
+      for (int i = 0; i < 3; i++) {
+        Bindings row = engine.createBindings();
+        row.put("x", i);
+        row.put("y", 10);
+        rows.add(row);
+      }
+      script.evalBatch(rows, handler);
+
+      Map<String, List<Integer>> columns = new LinkedHashMap<String, List<Integer>>();
+      columns.put("x", Arrays.asList(5, 6));
+      columns.put("y", Arrays.asList(100, 200));
+      script.evalColumns(columns, handler);
+
+      assertThat(results).isEqualTo(Arrays.<Object>asList(10, 11, 12, 105, 206));
+    }
+
+    @Test
+    public void testEvalBatchIsolatesRowsAndUsesTheGivenContext() throws Exception {
+      Map<String, Class<?>> types = new HashMap<String, Class<?>>();
+      types.put("x", Integer.class);
+      types.put("offset", Integer.class);
+      GosuCompiledScript script = ((GosuScriptEngine) engine).compile(
+          "var previous : Integer\n" +
+          "var seen = previous\n" +
+          "previous = x\n" +
+          "return seen == null ? x + offset : -1", types);
+      final List<Object> results = new ArrayList<Object>();
+      BatchResultHandler handler = new BatchResultHandler() {
+        @Override
+        public void onResult(Bindings row, Object result) {
+          results.add(result);
+        }
+
+        @Override
+        public void onError(Bindings row, ScriptException error) {
+          fail(error.getMessage());
+        }
+      };
+      ScriptContext context = new SimpleScriptContext();
+      Bindings globals = new SimpleBindings();
+      globals.put("offset", 1000);
+      context.setBindings(globals, ScriptContext.GLOBAL_SCOPE);
+
+      List<Bindings> rows = new ArrayList<Bindings>();
+      for (int i = 0; i < 3; i++) {
+        Bindings row = new SimpleBindings();
+        row.put("x", i);
+        rows.add(row);
+      }
+      script.evalBatch(rows, context, handler);
+
+      assertThat(results).as("No row should see the vars of the one before")
+          .isEqualTo(Arrays.<Object>asList(1000, 1001, 1002));
+    }
+
+    @Test
+    public void testMetricsRecordEvaluationsAndInvocations() throws Exception {
+      GosuScriptEngineFactory factory = new GosuScriptEngineFactory();
+      ScriptEngine measured = factory.getScriptEngine();
+      MetricsRecorder recorder = factory.enableMetrics();
+      try {
+        Bindings bindings = measured.createBindings();
+        bindings.put(ScriptEngine.FILENAME, "square.gsp");
+        measured.eval("function square(x : int) : int { return x * x }\nsquare(3)", bindings);
+        measured.eval("function square(x : int) : int { return x * x }\nsquare(3)", bindings);
+        ((Invocable) measured).invokeFunction("square", 4);
+
+        assertThat(recorder.getStats("square.gsp", ScriptMetrics.Operation.EVAL).getCount()).isEqualTo(2);
+        assertThat(recorder.getStats("square.gsp", ScriptMetrics.Operation.INVOKE_FUNCTION).getCount()).isEqualTo(1);
+        assertThat(recorder.getSlowestScripts(ScriptMetrics.Operation.EVAL, 1)).isEqualTo(Arrays.asList("square.gsp"));
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        Set<ObjectName> names = server.queryNames(new ObjectName("com.github.gosu.jsr223:type=GosuEngineMetrics,*"), null);
+        assertThat(names).hasSize(1);
+        assertThat((Long) server.getAttribute(names.iterator().next(), "EvalCount")).isEqualTo(2);
+      } finally {
+        factory.disableMetrics();
+      }
+      assertThat(factory.getMetrics()).isNull();
+    }
+
+    @Test
+    public void testMetricsKeepABoundedNumberOfScripts() throws Exception {
+      MetricsRecorder recorder = new MetricsRecorder(2);
+      recorder.record("a", ScriptMetrics.Operation.EVAL, 10, true);
+      recorder.record("b", ScriptMetrics.Operation.EVAL, 10, true);
+      Thread.sleep(1);
+      recorder.record("a", ScriptMetrics.Operation.EVAL, 10, true);
+      recorder.record("c", ScriptMetrics.Operation.EVAL, 10, true);
+
+      assertThat(recorder.getScriptCount()).isEqualTo(2);
+      assertThat(recorder.getStats("b", ScriptMetrics.Operation.EVAL)).as("The least recently recorded script goes").isNull();
+      assertThat(recorder.getStats("a", ScriptMetrics.Operation.EVAL).getCount()).isEqualTo(2);
+      assertThat(recorder.getTotals(ScriptMetrics.Operation.EVAL).getCount()).isEqualTo(4);
+
+      CompiledScript unnamed = ((Compilable) engine).compile("1");
+      assertThat(((GosuCompiledScript) unnamed).getScriptId()).isSameAs(((GosuCompiledScript) unnamed).getScriptId());
+    }
+
+    @Test
+    public void testProfilerRanksScriptsByCost() throws Exception {
+      GosuScriptEngineFactory factory = new GosuScriptEngineFactory();
+      ScriptEngine profiled = factory.getScriptEngine();
+      ScriptProfiler profiler = new ScriptProfiler();
+      factory.setProfiler(profiler);
+      try {
+        Bindings cheap = profiled.createBindings();
+        cheap.put(ScriptEngine.FILENAME, "cheap.gsp");
+        profiled.eval("1 + 1", cheap);
+        Bindings costly = profiled.createBindings();
+        costly.put(ScriptEngine.FILENAME, "costly.gsp");
+        profiled.eval("var s = \"\"\nfor (i in 0..2000) { s = s + i }\ns.length()", costly);
+      } finally {
+        factory.setProfiler(null);
+      }
+
+      assertThat(profiler.getProfile("cheap.gsp").getCount()).isEqualTo(1);
+      assertThat(profiler.getTopByAllocation(1).get(0).getScriptId()).isEqualTo("costly.gsp");
+      assertThat(profiler.report(5)).contains("costly.gsp");
+    }
+
+    @Test
+    public void testProfilerGroupsUnnamedScriptsByText() throws Exception {
+      GosuScriptEngineFactory factory = new GosuScriptEngineFactory();
+      factory.getProgramCache().setEnabled(false);
+      ScriptProfiler profiler = new ScriptProfiler();
+      factory.setProfiler(profiler);
+      ScriptEngine uncached = factory.getScriptEngine();
+
+      uncached.eval("2 + 2", new SimpleBindings());
+      uncached.eval("2 + 2", new SimpleBindings());
+
+      List<ScriptProfile> profiles = profiler.getTopByCpu(10);
+      assertThat(profiles).hasSize(1);
+      assertThat(profiles.get(0).getCount()).isEqualTo(2);
+      assertThat(profiles.get(0).getCount() - profiles.get(0).getUnmeasuredCount())
+          .as("Platform threads have CPU counters").isEqualTo(2);
+    }
+
+    @Test
+    public void testProfilerKeepsABoundedNumberOfScripts() throws Exception {
+      GosuScriptEngineFactory factory = new GosuScriptEngineFactory();
+      ScriptProfiler profiler = new ScriptProfiler(2);
+      factory.setProfiler(profiler);
+      try {
+        ScriptEngine profiled = factory.getScriptEngine();
+        for (int i = 0; i < 5; i++) {
+          profiled.eval("1 + " + i, new SimpleBindings());
+        }
+      } finally {
+        factory.setProfiler(null);
+      }
+
+      assertThat(profiler.getScriptCount()).isEqualTo(2);
+      assertThat(profiler.getTopByCpu(10)).hasSize(2);
+    }
+
+    @Test
+    public void testScriptRepositoryReloadsChangedFiles() throws Exception {
+      File dir = Files.createTempDirectory("rules").toFile();
+      try {
+        File rule = new File(dir, "rule.gsp");
+        FileWriter out = new FileWriter(rule);
+        out.write("1 + 1");
+        out.close();
+
+        ScriptRepository repository = new ScriptRepository((GosuScriptEngine) engine);
+        try {
+          repository.watch(dir.toPath());
+          GosuCompiledScript first = repository.get("rule.gsp");
+          assertThat(first.eval(new SimpleBindings())).isEqualTo(2);
+
+          out = new FileWriter(rule);
+          out.write("2 + 2");
+          out.close();
+          long deadline = System.currentTimeMillis() + 30000;
+          while (repository.get("rule.gsp") == first && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+          }
+
+          assertThat(repository.eval("rule.gsp", new SimpleBindings())).isEqualTo(4);
+          assertThat(first.eval(new SimpleBindings())).as("Holders of the old version keep it").isEqualTo(2);
+        } finally {
+          repository.close();
+        }
+      } finally {
+        deleteRecursively(dir);
+      }
+    }
+
+    @Test
+    public void testScriptRepositoryCompilesRulesAgainstBindingTypes() throws Exception {
+      File dir = Files.createTempDirectory("rules").toFile();
+      try {
+        FileWriter out = new FileWriter(new File(dir, "discount.gsp"));
+        out.write("amount > 100 ? amount / 10 : 0");
+        out.close();
+
+        ScriptRepository repository = new ScriptRepository((GosuScriptEngine) engine,
+                                                           Collections.<String, Class<?>>singletonMap("amount", Integer.class));
+        try {
+          repository.watch(dir.toPath());
+          assertThat(repository.getErrors()).isEmpty();
+
+          Bindings order = new SimpleBindings();
+          order.put("amount", 250);
+          assertThat(repository.eval("discount.gsp", order)).isEqualTo(25);
+        } finally {
+          repository.close();
+        }
+      } finally {
+        deleteRecursively(dir);
+      }
+    }
+
+    @Test
+    public void testScriptRepositoryDropsScriptsOfDeletedDirectories() throws Exception {
+      File dir = Files.createTempDirectory("rules").toFile();
+      try {
+        File sub = new File(dir, "pricing");
+        sub.mkdirs();
+        for (String name : Arrays.asList("a.gsp", "b.gsp")) {
+          FileWriter out = new FileWriter(new File(sub, name));
+          out.write("1");
+          out.close();
+        }
+        FileWriter out = new FileWriter(new File(dir, "kept.gsp"));
+        out.write("2");
+        out.close();
+
+        ScriptRepository repository = new ScriptRepository((GosuScriptEngine) engine);
+        try {
+          repository.watch(dir.toPath());
+          assertThat(repository.getNames()).hasSize(3);
+
+          deleteRecursively(sub);
+          long deadline = System.currentTimeMillis() + 30000;
+          while (repository.getNames().size() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+          }
+
+          assertThat(new ArrayList<String>(repository.getNames())).isEqualTo(Arrays.asList("kept.gsp"));
+        } finally {
+          repository.close();
+        }
+      } finally {
+        deleteRecursively(dir);
+      }
+    }
+
+    @Test
+    public void testProgramClassesAreCounted() throws Exception {
+      GosuScriptEngineFactory factory = new GosuScriptEngineFactory();
+      Compilable compiler = (Compilable) factory.getScriptEngine();
+
+      String text = "\"counted\".length()";
+      CompiledScript script = compiler.compile(text);
+
+      assertThat(factory.getProgramClassesCreated()).isEqualTo(1);
+      assertThat(factory.getLiveProgramClasses()).as("A class whose script is held cannot be unloaded").isEqualTo(1);
+
+      compiler.compile(text);
+      assertThat(factory.getProgramClassesCreated()).as("A cached program generates no class").isEqualTo(1);
+      assertThat(script.eval(new SimpleBindings())).isNotNull();
+    }
+
+    @Test
+    public void testDroppedProgramClassesAreUnloaded() throws Exception {
+      GosuScriptEngineFactory factory = new GosuScriptEngineFactory();
+      if (!factory.isUnloadingProgramClasses()) return;
+      factory.getProgramCache().setEnabled(false);
+      CompiledScript script = ((Compilable) factory.getScriptEngine()).compile("\"dropped\".length()");
+      assertThat(script.eval(new SimpleBindings())).isEqualTo(7);
+      assertThat(factory.getLiveProgramClasses()).isEqualTo(1);
+
+      script = null;
+      long deadline = System.currentTimeMillis() + 30000;
+      while (factory.getLiveProgramClasses() > 0 && System.currentTimeMillis() < deadline) {
+        System.gc();
+        Thread.sleep(50);
+      }
+
+      assertThat(factory.getLiveProgramClasses()).as("Nothing references the program any more").isEqualTo(0);
+    }
+
+    @Test
+    public void testCompiledExpressionFastPath() throws Exception {
+      Map<String, Class<?>> types = new LinkedHashMap<String, Class<?>>();
+      types.put("total", Integer.class);
+      types.put("limit", Integer.class);
+      GosuExpression overLimit = ((GosuScriptEngine) engine).compileExpression("total > limit", types);
+
+      assertThat(overLimit.test(150, 100)).isTrue();
+      assertThat(overLimit.test(50, 100)).isFalse();
+      Bindings bindings = new SimpleBindings();
+      bindings.put("total", 101);
+      bindings.put("limit", 100);
+      assertThat(overLimit.eval(bindings)).isEqualTo(true);
+
+      try {
+        ((GosuScriptEngine) engine).compileExpression("var x = total\nx > 1", types);
+        fail("A script declaring vars is not a pure expression");
+      } catch (ScriptException e) {
+        assertThat(e.getMessage()).contains("x");
+      }
+    }
+
+    @Test
+    public void testCompiledExpressionCalledFromItsOwnEvaluation() throws Exception {
+      Map<String, Class<?>> types = new LinkedHashMap<String, Class<?>>();
+      types.put("x", Integer.class);
+      types.put("inner", IntSupplier.class);
+      final GosuExpression sum = ((GosuScriptEngine) engine).compileExpression("x + inner.getAsInt()", types);
+
+      IntSupplier nested = new IntSupplier() {
+        @Override
+        public int getAsInt() {
+          try {
+            return (Integer) sum.evalWith(10, new IntSupplier() {
+              @Override
+              public int getAsInt() {
+                return 0;
+              }
+            });
+          } catch (ScriptException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+
+      assertThat(sum.evalWith(1, nested)).as("The nested evaluation leaves the outer x alone").isEqualTo(11);
+      assertThat(sum.evalWith(2, nested)).as("The thread's symbols are free again").isEqualTo(12);
+    }
+
+    @Test
+    public void testGlobalSnapshotFollowsGlobalChanges() throws Exception {
+      GosuBindings globals = new GosuBindings();
+      globals.put("rate", 2);
+      ScriptContext context = new SimpleScriptContext();
+      context.setBindings(globals, ScriptContext.GLOBAL_SCOPE);
+      Bindings bindings = engine.createBindings();
+      bindings.put("x", 3);
+      context.setBindings(bindings, ScriptContext.ENGINE_SCOPE);
+      Map<String, Class<?>> types = new HashMap<String, Class<?>>();
+      types.put("x", Integer.class);
+      types.put("rate", Integer.class);
+      CompiledScript script = ((GosuScriptEngine) engine).compile("x * rate", types);
+
+      assertThat(script.eval(context)).isEqualTo(6);
+      bindings.put("x", 4);
+      assertThat(script.eval(context)).isEqualTo(8);
+
+      globals.put("rate", 5);
+      assertThat(script.eval(context)).as("A changed global should be reloaded").isEqualTo(20);
+    }
+
+    @Test
+    public void testGlobalSnapshotIsNotChangedByScripts() throws Exception {
+      GosuBindings globals = new GosuBindings();
+      globals.put("rate", 2);
+      ScriptContext context = new SimpleScriptContext();
+      context.setBindings(globals, ScriptContext.GLOBAL_SCOPE);
+      context.setBindings(engine.createBindings(), ScriptContext.ENGINE_SCOPE);
+      Map<String, Class<?>> types = Collections.<String, Class<?>>singletonMap("rate", Integer.class);
+      CompiledScript write = ((GosuScriptEngine) engine).compile("rate = 10\nreturn rate", types);
+      CompiledScript read = ((GosuScriptEngine) engine).compile("rate * 3", types);
+
+      assertThat(read.eval(context)).isEqualTo(6);
+      assertThat(write.eval(context)).isEqualTo(10);
+      assertThat(read.eval(context)).as("A global assigned by a script should be reloaded").isEqualTo(6);
+    }
+
+    @Test
+    public void testGlobalSnapshotIsSharedByDifferentDeclarations() throws Exception {
+      GosuBindings globals = new GosuBindings();
+      globals.put("rate", 2);
+      ScriptContext context = new SimpleScriptContext();
+      context.setBindings(globals, ScriptContext.GLOBAL_SCOPE);
+      context.setBindings(engine.createBindings(), ScriptContext.ENGINE_SCOPE);
+      CompiledScript asInteger = ((GosuScriptEngine) engine).compile(
+          "rate * 2", Collections.<String, Class<?>>singletonMap("rate", Integer.class));
+      CompiledScript asNumber = ((GosuScriptEngine) engine).compile(
+          "rate.doubleValue() / 4", Collections.<String, Class<?>>singletonMap("rate", Number.class));
+
+      for (int i = 0; i < 3; i++) {
+        assertThat(asInteger.eval(context)).isEqualTo(4);
+        assertThat(asNumber.eval(context)).isEqualTo(0.5);
+      }
+    }
+
+    @Test
+    public void testTypedFunctionHandles() throws Exception {
+      engine.eval("function scale(x : double) : double { return x * 1.5 }\n"
+          + "function add(a : int, b : int) : int { return a + b }");
+      GosuScriptEngine gosuEngine = (GosuScriptEngine) engine;
+
+      DoubleUnaryOperator scale = gosuEngine.getFunction("scale", double.class, double.class).asDoubleUnaryOperator();
+      IntBinaryOperator add = gosuEngine.getFunction("add", int.class, int.class, int.class).asIntBinaryOperator();
+
+      assertThat(scale.applyAsDouble(2.0)).isEqualTo(3.0);
+      assertThat(add.applyAsInt(2, 3)).isEqualTo(5);
+      assertThat(gosuEngine.getFunction("add", int.class, int.class, int.class).invoke(4, 5)).isEqualTo(9);
+    }
+
+    private static void deleteRecursively(File file) {
+      File[] children = file.listFiles();
+      if (children != null) {
+        for (File child : children) {
+          deleteRecursively(child);
+        }
+      }
+      file.delete();
+    }
 }